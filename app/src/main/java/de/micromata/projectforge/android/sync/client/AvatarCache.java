@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of processed avatars, keyed by the SHA-1 of the image as the server sent it. The
+ * same photo arrives with every sync that touches its contact; with the cache it is scaled and
+ * re-encoded by {@link AvatarProcessor} only the first time.
+ * <p>
+ * The cache lives in the app's cache directory and is bounded by size. Entries are evicted least
+ * recently used first, where use is tracked in memory and seeded from the file modification times.
+ */
+public final class AvatarCache
+{
+  private static final String TAG = "AvatarCache";
+
+  private static final String DIRECTORY = "avatars";
+
+  static final long MAX_BYTES = 16 * 1024 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static AvatarCache sInstance;
+
+  private final File mDirectory;
+
+  private final long mMaxBytes;
+
+  /**
+   * File name to size, in access order
+   */
+  private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+
+  private long mBytes;
+
+  /**
+   * @return the process-wide cache in the app's cache directory
+   */
+  public static synchronized AvatarCache get(Context context)
+  {
+    if (sInstance == null) {
+      sInstance = new AvatarCache(new File(context.getCacheDir(), DIRECTORY), MAX_BYTES);
+    }
+    return sInstance;
+  }
+
+  AvatarCache(File directory, long maxBytes)
+  {
+    mDirectory = directory;
+    mMaxBytes = maxBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Can't create " + directory);
+    }
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      Arrays.sort(files, new Comparator<File>()
+      {
+        @Override
+        public int compare(File a, File b)
+        {
+          final long ma = a.lastModified();
+          final long mb = b.lastModified();
+          return ma < mb ? -1 : (ma == mb ? 0 : 1);
+        }
+      });
+      for (File file : files) {
+        if (file.getName().endsWith(".tmp")) {
+          file.delete();
+          continue;
+        }
+        mEntries.put(file.getName(), file.length());
+        mBytes += file.length();
+      }
+    }
+  }
+
+  /**
+   * @return the hex SHA-1 of the image bytes, the key of the cache
+   */
+  public static String hash(byte[] avatar)
+  {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(avatar);
+      final char[] hex = new char[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+        hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+        hex[2 * i + 1] = HEX[digest[i] & 0xf];
+      }
+      return new String(hex);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the avatar processed for the given size, from the cache if possible.
+   *
+   * @param hash         the {@link #hash} of source
+   * @param source       the image as received from the server
+   * @param maxDimension the largest width or height to keep
+   * @return the image to store in the provider
+   */
+  public synchronized byte[] getProcessed(String hash, byte[] source, int maxDimension)
+  {
+    final String name = hash + "_" + maxDimension;
+    final File file = new File(mDirectory, name);
+    if (mEntries.get(name) != null) {
+      final byte[] cached = read(file);
+      if (cached != null) {
+        return cached;
+      }
+      remove(name);
+    }
+
+    final byte[] processed = AvatarProcessor.process(source, maxDimension);
+    if (write(file, processed)) {
+      mEntries.put(name, (long) processed.length);
+      mBytes += processed.length;
+      trim();
+    }
+    return processed;
+  }
+
+  private void trim()
+  {
+    final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+    while (mBytes > mMaxBytes && it.hasNext()) {
+      final Map.Entry<String, Long> eldest = it.next();
+      it.remove();
+      mBytes -= eldest.getValue();
+      new File(mDirectory, eldest.getKey()).delete();
+    }
+  }
+
+  private void remove(String name)
+  {
+    final Long size = mEntries.remove(name);
+    if (size != null) {
+      mBytes -= size;
+    }
+    new File(mDirectory, name).delete();
+  }
+
+  private static byte[] read(File file)
+  {
+    final long length = file.length();
+    if (length <= 0 || length > Integer.MAX_VALUE) {
+      return null;
+    }
+    final byte[] data = new byte[(int) length];
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int offset = 0;
+      int n;
+      while (offset < data.length && (n = in.read(data, offset, data.length - offset)) > 0) {
+        offset += n;
+      }
+      if (offset != data.length) {
+        return null;
+      }
+      // Keeps the on-disk order close to the access order for the next process
+      file.setLastModified(System.currentTimeMillis());
+      return data;
+    } catch (IOException e) {
+      Log.w(TAG, "Can't read " + file, e);
+      return null;
+    } finally {
+      close(in);
+    }
+  }
+
+  /**
+   * Writes to a temporary file and renames it, so a crash never leaves a truncated entry.
+   */
+  private boolean write(File file, byte[] data)
+  {
+    final File tmp = new File(mDirectory, file.getName() + ".tmp");
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      out.write(data);
+      out.close();
+      out = null;
+      return tmp.renameTo(file);
+    } catch (IOException e) {
+      Log.w(TAG, "Can't write " + file, e);
+      tmp.delete();
+      return false;
+    } finally {
+      close(out);
+    }
+  }
+
+  private static void close(Closeable closeable)
+  {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Brings avatars received from the server down to the size the ContactsProvider keeps for display
+ * photos, so we neither ship nor store pixels it would throw away.
+ */
+public final class AvatarProcessor
+{
+  private static final String TAG = "AvatarProcessor";
+
+  /**
+   * Used when the provider's limit is unknown; the provider default on most devices
+   */
+  public static final int DEFAULT_MAX_DIMENSION = 720;
+
+  private static final String MIME_JPEG = "image/jpeg";
+
+  private static final int JPEG_QUALITY = 90;
+
+  private AvatarProcessor()
+  {
+  }
+
+  /**
+   * Scales an avatar so that neither side exceeds maxDimension and encodes it as JPEG. A JPEG
+   * that already fits is returned as is, without being decoded.
+   *
+   * @param avatar       the image as received, may be null
+   * @param maxDimension the largest width or height to keep
+   * @return the image to store, the input itself if it needs no processing or can't be decoded
+   */
+  public static byte[] process(byte[] avatar, int maxDimension)
+  {
+    if (avatar == null || avatar.length == 0) {
+      return avatar;
+    }
+
+    // Read the header only
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(avatar, 0, avatar.length, options);
+    final int width = options.outWidth;
+    final int height = options.outHeight;
+    if (width <= 0 || height <= 0) {
+      Log.w(TAG, "Undecodable avatar of " + avatar.length + " bytes");
+      return avatar;
+    }
+    final int largest = Math.max(width, height);
+    if (largest <= maxDimension && MIME_JPEG.equals(options.outMimeType)) {
+      return avatar;
+    }
+
+    // Let the decoder drop whole pixel blocks first, never below the target
+    int sampleSize = 1;
+    while (largest / (sampleSize * 2) >= maxDimension) {
+      sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    Bitmap bitmap = BitmapFactory.decodeByteArray(avatar, 0, avatar.length, options);
+    if (bitmap == null) {
+      Log.w(TAG, "Failed to decode avatar of " + width + "x" + height);
+      return avatar;
+    }
+
+    final int sampled = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    if (sampled > maxDimension) {
+      final float scale = (float) maxDimension / sampled;
+      final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+          Math.max(1, Math.round(bitmap.getWidth() * scale)),
+          Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+      if (scaled != bitmap) {
+        bitmap.recycle();
+        bitmap = scaled;
+      }
+    }
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(avatar.length / 2 + 1024);
+    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+    bitmap.recycle();
+    final byte[] result = out.toByteArray();
+    Log.d(TAG, "Avatar " + width + "x" + height + " (" + avatar.length + " bytes) stored as "
+        + Math.min(largest, maxDimension) + "px (" + result.length + " bytes)");
+    return result;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded hand-over of parsed contacts from the thread reading the server
+ * response to the thread applying them. The parser blocks while the queue is
+ * full, so at most the queue capacity of contacts is held in memory no matter
+ * how large the directory is.
+ */
+public final class ContactStream
+{
+  private static final String TAG = "ContactStream";
+
+  /**
+   * Queued after the last contact
+   */
+  private static final RawContact END = new RawContact();
+
+  private final BlockingQueue<RawContact> mQueue;
+
+  private volatile Thread mProducer;
+
+  private volatile Runnable mOnCancel;
+
+  private volatile boolean mCancelled;
+
+  private volatile Exception mFailure;
+
+  private boolean mEnded;
+
+  /**
+   * @param capacity the number of parsed contacts that may wait for the consumer
+   */
+  public ContactStream(int capacity)
+  {
+    mQueue = new ArrayBlockingQueue<RawContact>(capacity);
+  }
+
+  /**
+   * Creates a stream over contacts that are already in memory.
+   */
+  public static ContactStream of(List<RawContact> rawContacts)
+  {
+    final ContactStream stream = new ContactStream(rawContacts.size() + 1);
+    stream.mQueue.addAll(rawContacts);
+    stream.mQueue.add(END);
+    return stream;
+  }
+
+  /**
+   * Runs the producer on its own thread. It has to call {@link #put} for every
+   * contact and {@link #finish} once, failed or not.
+   *
+   * @param name     the thread name
+   * @param producer fills the stream
+   * @param onCancel run by {@link #cancel()} to unblock a producer waiting on
+   *                 the network, may be null
+   */
+  public void start(String name, Runnable producer, Runnable onCancel)
+  {
+    mOnCancel = onCancel;
+    final Thread thread = new Thread(producer, name);
+    mProducer = thread;
+    thread.start();
+  }
+
+  /**
+   * Producer side: queues a contact, waiting while the queue is full.
+   */
+  public void put(RawContact contact) throws InterruptedException
+  {
+    if (mCancelled) {
+      throw new InterruptedException("Contact stream cancelled");
+    }
+    mQueue.put(contact);
+  }
+
+  /**
+   * Producer side: marks the end of the stream.
+   *
+   * @param failure why the producer stopped early, or null
+   */
+  public void finish(Exception failure)
+  {
+    mFailure = failure;
+    if (mCancelled) {
+      return;
+    }
+    try {
+      mQueue.put(END);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Consumer side: waits for at least one contact and moves the ones already
+   * queued, up to max, into chunk.
+   *
+   * @return the number of contacts added, 0 at the end of the stream
+   */
+  public int drainTo(List<RawContact> chunk, int max) throws InterruptedException
+  {
+    if (mEnded) {
+      return 0;
+    }
+    final RawContact first = mQueue.take();
+    if (mCancelled) {
+      throw new InterruptedException("Contact stream cancelled");
+    }
+    if (first == END) {
+      mEnded = true;
+      return 0;
+    }
+    final int start = chunk.size();
+    chunk.add(first);
+    mQueue.drainTo(chunk, max - 1);
+    if (chunk.get(chunk.size() - 1) == END) {
+      chunk.remove(chunk.size() - 1);
+      mEnded = true;
+    }
+    return chunk.size() - start;
+  }
+
+  /**
+   * Rethrows the failure that ended the producer, if any. Only meaningful
+   * once the consumer has reached the end of the stream.
+   */
+  public void checkFailure() throws IOException
+  {
+    final Exception failure = mFailure;
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new IOException(failure);
+    }
+  }
+
+  /**
+   * Stops the producer and drops whatever it queued; a consumer waiting in
+   * {@link #drainTo} gets an InterruptedException. Safe to call from any
+   * thread and more than once.
+   */
+  public void cancel()
+  {
+    if (mCancelled) {
+      return;
+    }
+    mCancelled = true;
+    final Thread producer = mProducer;
+    if (producer != null && producer.isAlive()) {
+      Log.i(TAG, "Cancelling " + producer.getName());
+      producer.interrupt();
+      final Runnable onCancel = mOnCancel;
+      if (onCancel != null) {
+        onCancel.run();
+      }
+    }
+    // Wake up a consumer waiting for the next contact
+    mQueue.clear();
+    mQueue.offer(END);
+  }
+}
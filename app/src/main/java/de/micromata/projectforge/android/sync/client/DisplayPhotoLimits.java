@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.provider.ContactsContract.DisplayPhoto;
+import android.util.Log;
+
+/**
+ * Process-wide cache of the largest display photo the ContactsProvider keeps. The value only
+ * changes with the device configuration or the provider itself, so it is queried once and kept
+ * until either of them tells us otherwise.
+ */
+public final class DisplayPhotoLimits
+{
+  private static final String TAG = "DisplayPhotoLimits";
+
+  /**
+   * The cached dimension, 0 while unknown
+   */
+  private static volatile int sMaxDimension;
+
+  private static boolean sListening;
+
+  private DisplayPhotoLimits()
+  {
+  }
+
+  /**
+   * @param context any context, the application context is kept for the invalidation callbacks
+   * @return the largest width or height of a display photo
+   */
+  public static int getMaxDimension(Context context)
+  {
+    int maxDimension = sMaxDimension;
+    if (maxDimension > 0) {
+      return maxDimension;
+    }
+    final Context appContext = context.getApplicationContext() != null
+        ? context.getApplicationContext() : context;
+    listen(appContext);
+    maxDimension = query(appContext);
+    if (maxDimension <= 0) {
+      // Not cached, so we try again next time
+      return AvatarProcessor.DEFAULT_MAX_DIMENSION;
+    }
+    sMaxDimension = maxDimension;
+    return maxDimension;
+  }
+
+  /**
+   * Forgets the cached value; the next caller queries the provider again.
+   */
+  public static void invalidate()
+  {
+    sMaxDimension = 0;
+  }
+
+  /**
+   * @return the dimension reported by the provider, 0 if it could not be read
+   */
+  private static int query(Context context)
+  {
+    final Cursor cursor = context.getContentResolver().query(DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
+        new String[] { DisplayPhoto.DISPLAY_MAX_DIM }, null, null, null);
+    if (cursor == null) {
+      return 0;
+    }
+    try {
+      if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+        Log.d(TAG, "Display photo max dimension " + cursor.getInt(0));
+        return cursor.getInt(0);
+      }
+      return 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  private static synchronized void listen(Context context)
+  {
+    if (sListening) {
+      return;
+    }
+    sListening = true;
+    context.getContentResolver().registerContentObserver(DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
+        false, new ContentObserver(null)
+        {
+          @Override
+          public void onChange(boolean selfChange)
+          {
+            invalidate();
+          }
+        });
+    context.registerComponentCallbacks(new ComponentCallbacks()
+    {
+      @Override
+      public void onConfigurationChanged(Configuration newConfig)
+      {
+        invalidate();
+      }
+
+      @Override
+      public void onLowMemory()
+      {
+      }
+    });
+  }
+}
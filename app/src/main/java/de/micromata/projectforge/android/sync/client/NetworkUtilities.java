@@ -106,6 +106,12 @@ final public class NetworkUtilities
    */
   public static final String SYNC_CONTACTS_URI = "/rest/address/list";
 
+  /**
+   * Number of parsed contacts that may wait for the sync thread. Bounds the memory of a sync,
+   * avatars included, independent of the size of the directory.
+   */
+  static final int CONTACT_QUEUE_CAPACITY = 128;
+
   private NetworkUtilities()
   {
   }
@@ -222,7 +228,7 @@ final public class NetworkUtilities
    * @param context         the context
    * @param account         The account being synced
    * @param authtoken       The authtoken stored in the AccountManager for this account
-   * @param serverSyncState A token returned from the server on the last sync
+   * @param watermark       The sync marker left by the last sync
    * @return A list of contacts that we need to update locally
    * @throws JSONException           the json exception
    * @throws ParseException          the parse exception
@@ -230,35 +236,137 @@ final public class NetworkUtilities
    * @throws AuthenticationException the authentication exception
    */
   public static List<RawContact> syncContacts(Context context,
-      Account account, String authtoken, long serverSyncState)
+      Account account, String authtoken, SyncWatermark watermark)
       throws JSONException, ParseException, IOException,
       AuthenticationException
   {
-    // Convert our list of User objects into a list of JSONObject
-    // List<JSONObject> jsonContacts = new ArrayList<JSONObject>();
-    // for (RawContact rawContact : dirtyContacts)
-    // jsonContacts.add(rawContact.toJSONObject());
-    // }
-
-    // Create a special JSONArray of our JSON contacts
-    // JSONArray buffer = new JSONArray(jsonContacts);
-
     // Create an array that will hold the server-side contacts
     // that have been changed (returned by the server).
     final ArrayList<RawContact> serverDirtyList = new ArrayList<RawContact>();
 
-    // Prepare our POST data
-    // final ArrayList<NameValuePair> params = new
-    // ArrayList<NameValuePair>();
-    // params.add(new BasicNameValuePair(PARAM_USERNAME, account.name));
-    // params.add(new BasicNameValuePair(PARAM_AUTH_TOKEN, authtoken));
-    // params.add(new BasicNameValuePair(PARAM_CONTACTS_DATA,
-    // buffer.toString()));
+    HttpURLConnection httpURLConnection = openSyncConnection(context,
+        account, authtoken, watermark);
+    try {
+      // Our request to the server was successful - so we assume
+      // that they accepted all the changes we sent up, and
+      // that the response includes the contacts that we need
+      // to update on our side...
+      InputStream is = httpURLConnection.getInputStream();
+
+      parse(serverDirtyList, is, context);
+    } finally {
+      httpURLConnection.disconnect();
+    }
 
+    return serverDirtyList;
+  }
+
+  /**
+   * Like {@link #syncContacts}, but hands the contacts over while the response is still being
+   * downloaded and parsed on a background thread. The request itself is sent before this method
+   * returns, so authentication failures are reported here; read and parse failures are reported
+   * by {@link ContactStream#checkFailure()} once the stream has been drained.
+   *
+   * @param context   the context
+   * @param account   The account being synced
+   * @param authtoken The authtoken stored in the AccountManager for this account
+   * @param watermark The sync marker left by the last sync
+   * @return the stream of contacts that we need to update locally
+   * @throws IOException             the io exception
+   * @throws AuthenticationException the authentication exception
+   */
+  public static ContactStream openContactStream(final Context context,
+      Account account, String authtoken, SyncWatermark watermark)
+      throws IOException, AuthenticationException
+  {
+    return startContactStream(context, "ContactStream-" + account.name,
+        openSyncConnection(context, account, authtoken, watermark));
+  }
+
+  /**
+   * Like {@link #openContactStream(Context, Account, String, SyncWatermark)}, for a server and
+   * user given directly rather than through the account.
+   *
+   * @param context   the context, may be null
+   * @param baseUrl   the base url of the server
+   * @param userId    the id the server returned on authentication
+   * @param authtoken the token the server returned on authentication
+   * @param watermark The sync marker left by the last sync
+   * @return the stream of contacts that we need to update locally
+   * @throws IOException             the io exception
+   * @throws AuthenticationException the authentication exception
+   */
+  public static ContactStream openContactStream(final Context context,
+      String baseUrl, String userId, String authtoken, SyncWatermark watermark)
+      throws IOException, AuthenticationException
+  {
+    return startContactStream(context, "ContactStream-" + userId,
+        openSyncConnection(baseUrl, userId, authtoken, watermark));
+  }
+
+  /**
+   * Parses the response of a sync request on a background thread.
+   */
+  private static ContactStream startContactStream(final Context context,
+      String name, final HttpURLConnection httpURLConnection) throws IOException
+  {
+    final InputStream is = httpURLConnection.getInputStream();
+    final ContactStream stream = new ContactStream(CONTACT_QUEUE_CAPACITY);
+    stream.start(name, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Exception failure = null;
+        try {
+          new Parser().parse(new Parser.ContactHandler()
+          {
+            @Override
+            public boolean onContact(RawContact contact) throws InterruptedException
+            {
+              // Blocks while the sync thread is behind
+              stream.put(contact);
+              return true;
+            }
+          }, is, context);
+        } catch (Exception e) {
+          failure = e;
+        } finally {
+          httpURLConnection.disconnect();
+          stream.finish(failure);
+        }
+      }
+    }, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // Unblocks a parser that is waiting on the socket
+        httpURLConnection.disconnect();
+      }
+    });
+    return stream;
+  }
+
+  /**
+   * Sends the sync request and checks the response code.
+   *
+   * @return the connection, ready to read the contacts from
+   */
+  private static HttpURLConnection openSyncConnection(Context context,
+      Account account, String authtoken, SyncWatermark watermark)
+      throws IOException, AuthenticationException
+  {
     String baseUrl = AccountManager.get(context)
         .getUserData(account, "url");
     String userId = AccountManager.get(context).getUserData(account, "id");
+    return openSyncConnection(baseUrl, userId, authtoken, watermark);
+  }
 
+  private static HttpURLConnection openSyncConnection(String baseUrl,
+      String userId, String authtoken, SyncWatermark watermark)
+      throws IOException, AuthenticationException
+  {
     StringBuilder urlBuilder = new StringBuilder();
     urlBuilder.append(baseUrl).append(SYNC_CONTACTS_URI).append("?")
         .append("settings.dateTimeFormat=MILLIS_SINCE_1970");
@@ -269,50 +377,33 @@ final public class NetworkUtilities
         .append(authtoken).append("&").append(PARAM_USER_ID)
         .append("=").append(userId);
 
-    // serverSyncState = 0;
-    if (serverSyncState > 0) {
+    // The window starts at the watermark itself: changes committed after
+    // the last sync may carry the same timestamp. What we already applied
+    // is dropped against the watermark's seen ids.
+    if (!watermark.isInitial()) {
       urlBuilder.append("&").append(PARAM_MODIFIED_SINCE).append("=")
-          .append(serverSyncState + 1);
+          .append(watermark.getStartTimestamp());
     }
 
-    //    final HttpGet get = new HttpGet(urlBuilder.toString());
-    //
-    //    // Send the updated friends data to the server
-    //
-    //    final HttpResponse resp = getHttpClient().execute(get);
-
     HttpURLConnection httpURLConnection =
         (HttpURLConnection) new URL(urlBuilder.toString()).openConnection();
     httpURLConnection.connect();
 
-    //    final String response = EntityUtils.toString(resp.getEntity(), "utf-8");
-    if (httpURLConnection.getResponseCode() == 200) {
-      // Our request to the server was successful - so we assume
-      // that they accepted all the changes we sent up, and
-      // that the response includes the contacts that we need
-      // to update on our side...
-      InputStream is = httpURLConnection.getInputStream();
-
-      parse(serverDirtyList, is, context);
-
-      httpURLConnection.disconnect();
-
+    int rCode = httpURLConnection.getResponseCode();
+    if (rCode == 200) {
+      return httpURLConnection;
+    }
+    httpURLConnection.disconnect();
+    if (rCode == 401
+        || rCode == 403) {
+      String message = "Authentication exception in sending dirty contacts";
+      Log.e(TAG, message);
+      throw new AuthenticationException(message);
     } else {
-      int rCode = httpURLConnection.getResponseCode();
-      if (rCode == 401
-          || rCode == 403) {
-        String message = "Authentication exception in sending dirty contacts";
-        Log.e(TAG, message);
-        throw new AuthenticationException(message);
-      } else {
-        Log.e(TAG,
-            "Server error in sending dirty contacts: "
-                + httpURLConnection.getResponseCode());
-        throw new IOException();
-      }
+      Log.e(TAG,
+          "Server error in sending dirty contacts: " + rCode);
+      throw new IOException();
     }
-
-    return serverDirtyList;
   }
 
   private static void parse(final ArrayList<RawContact> serverDirtyList, final InputStream is,
@@ -6,4 +6,9 @@ public class ParseException extends RuntimeException
   {
     super(message);
   }
+
+  public ParseException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
 }
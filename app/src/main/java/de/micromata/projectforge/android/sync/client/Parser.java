@@ -1,12 +1,14 @@
 package de.micromata.projectforge.android.sync.client;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.provider.ContactsContract;
-import android.util.Base64;
 import android.util.Log;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
@@ -17,171 +19,405 @@ import org.codehaus.jackson.JsonToken;
 
 public class Parser
 {
+  private static final String TAG = "Parser";
+
+  /**
+   * Per-contact tracing. Checked once, so the hot loop pays a constant branch
+   * and no string building while it is off:
+   * adb shell setprop log.tag.Parser VERBOSE
+   */
+  private static final boolean LOG_CONTACTS = Log.isLoggable(TAG, Log.VERBOSE);
+
+  /**
+   * Shared so its symbol table, which canonicalizes field names, is built
+   * once instead of per response.
+   */
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * The contact fields we read. Looked up by name once per field token; field
+   * names come out of Jackson's symbol table, so the lookup hashes a cached
+   * hash code and compares by identity first, without allocating.
+   */
+  enum Field
+  {
+    CONTACT_STATUS("contactStatus"),
+    FIRST_NAME("firstName"),
+    NAME("name"),
+    PRIVATE_EMAIL("privateEmail"),
+    EMAIL("email"),
+    PRIVATE_MOBILE_PHONE("privateMobilePhone"),
+    MOBILE_PHONE("mobilePhone"),
+    PRIVATE_PHONE("privatePhone"),
+    BUSINESS_PHONE("businessPhone"),
+    FAX("fax"),
+    ORGANIZATION("organization"),
+    DIVISION("division"),
+    POSITION_TEXT("positionText"),
+    WEBSITE("website"),
+    COMMENT("comment"),
+    ADDRESS_STATUS("addressStatus"),
+    FORM("form"),
+    ADDRESS_TEXT("addressText"),
+    ZIP_CODE("zipCode"),
+    CITY("city"),
+    STATE("state"),
+    COUNTRY("country"),
+    POSTAL_ADDRESS_TEXT("postalAddressText"),
+    POSTAL_ZIP_CODE("postalZipCode"),
+    POSTAL_CITY("postalCity"),
+    POSTAL_STATE("postalState"),
+    POSTAL_COUNTRY("postalCountry"),
+    PRIVATE_ADDRESS_TEXT("privateAddressText"),
+    PRIVATE_ZIP_CODE("privateZipCode"),
+    PRIVATE_CITY("privateCity"),
+    PRIVATE_STATE("privateState"),
+    PRIVATE_COUNTRY("privateCountry"),
+    ID("id"),
+    IMAGE("image"),
+    COMMUNICATION_LANGUAGE("communicationLanguage"),
+    PUBLIC_KEY("publicKey"),
+    DELETED("deleted"),
+    LAST_UPDATE("lastUpdate");
+
+    final String jsonName;
+
+    Field(String jsonName)
+    {
+      this.jsonName = jsonName;
+    }
+  }
+
+  private static final HashMap<String, Field> FIELDS = new HashMap<String, Field>();
+
+  static {
+    for (Field field : Field.values()) {
+      FIELDS.put(field.jsonName, field);
+    }
+  }
+
+  /**
+   * @return the field for a JSON name, or null if we don't read it
+   */
+  static Field field(String jsonName)
+  {
+    return FIELDS.get(jsonName);
+  }
+
+  /**
+   * Receives every contact as soon as its closing brace has been parsed. The
+   * parser reads no further while the handler runs, so a handler that blocks
+   * applies backpressure all the way to the socket.
+   */
+  public interface ContactHandler
+  {
+    /**
+     * @param contact the completed contact
+     * @return false to stop parsing; the rest of the stream is not read
+     * @throws InterruptedException if the handler was waiting for room and the
+     *                              parse got cancelled
+     */
+    boolean onContact(RawContact contact) throws InterruptedException;
+  }
+
   private JsonParser jParser;
 
-  private int mPhotoDim = 720;
+  private int mCount;
 
   public Parser()
   {
 
   }
 
-  private String getString() throws Exception
+  private String getString() throws IOException
   {
     return jParser.nextTextValue();
   }
 
-  private boolean getBoolean() throws Exception
+  private boolean getBoolean() throws IOException
   {
     return jParser.nextBooleanValue();
   }
 
-  private long getLong() throws Exception
+  /**
+   * Decodes a base64 string value straight from the token buffer into a single byte array,
+   * without building the String first.
+   *
+   * @return the decoded bytes, or null if the value is null, not a string or malformed
+   */
+  private byte[] getBinary() throws IOException
   {
-    //jParser.nextToken();
-    return jParser.nextLongValue(-1l);
+    if (jParser.nextToken() != JsonToken.VALUE_STRING) {
+      jParser.skipChildren();
+      return null;
+    }
+    final byte[] data = decodeBase64(jParser.getTextCharacters(), jParser.getTextOffset(),
+        jParser.getTextLength());
+    if (data == null) {
+      Log.w(TAG, "Dropping malformed base64 value of " + jParser.getCurrentName());
+    }
+    return data;
   }
 
-  public void parseImpl(final ArrayList<RawContact> serverDirtyList, final InputStream is, Context context) throws
-      Exception
+  private static final byte[] BASE64_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(BASE64_VALUES, (byte) -1);
+    final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  private static boolean isBase64Whitespace(char c)
   {
+    return c == '\n' || c == '\r' || c == ' ' || c == '\t';
+  }
 
-    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-      if (context != null) {
-        Cursor cursor = context.getContentResolver().query(ContactsContract.DisplayPhoto.CONTENT_MAX_DIMENSIONS_URI,
-            new String[] { ContactsContract.DisplayPhoto.DISPLAY_MAX_DIM }, null, null, null);
-        cursor.moveToFirst();
-        mPhotoDim = cursor.getInt(0);
-        if (cursor != null && cursor.isClosed() == false) {
-          cursor.close();
-        }
+  /**
+   * Decodes base64 as leniently as android.util.Base64 with DEFAULT flags: line breaks are
+   * skipped, and the trailing padding may be missing. Jackson's own decoder rejects unpadded
+   * input, and its error leaves the parser in the middle of the string.
+   *
+   * @return the bytes, or null if the input is not base64
+   */
+  static byte[] decodeBase64(char[] chars, int offset, int length)
+  {
+    // First pass: count the significant characters, so the output is allocated once
+    final int end = offset + length;
+    int significant = 0;
+    for (int i = offset; i < end; i++) {
+      final char c = chars[i];
+      if (c == '=') {
+        break;
+      }
+      if (isBase64Whitespace(c)) {
+        continue;
       }
+      if (c >= 128 || BASE64_VALUES[c] < 0) {
+        return null;
+      }
+      significant++;
     }
+    if (significant % 4 == 1) {
+      return null;
+    }
+    final byte[] data = new byte[significant / 4 * 3 + Math.max(0, significant % 4 - 1)];
+    int bits = 0;
+    int count = 0;
+    int n = 0;
+    for (int i = offset; i < end; i++) {
+      final char c = chars[i];
+      if (c == '=') {
+        break;
+      }
+      if (isBase64Whitespace(c)) {
+        continue;
+      }
+      bits = bits << 6 | BASE64_VALUES[c];
+      if (++count == 4) {
+        data[n++] = (byte) (bits >> 16);
+        data[n++] = (byte) (bits >> 8);
+        data[n++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+    if (count == 2) {
+      data[n] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      data[n++] = (byte) (bits >> 10);
+      data[n] = (byte) (bits >> 2);
+    }
+    return data;
+  }
 
+  private long getLong() throws IOException
+  {
+    //jParser.nextToken();
+    return jParser.nextLongValue(-1l);
+  }
 
-    JsonFactory jfactory = new JsonFactory();
-
-    /*** read from file ***/
-    jParser = jfactory.createJsonParser(is);
+  /**
+   * Starts reading a contact array. Contacts are then pulled one at a time with
+   * {@link #nextContact()} or {@link #iterator()}; call {@link #close()} when done.
+   *
+   * @param is the response stream
+   * @throws ParseException if the stream does not start with an array
+   */
+  public void open(final InputStream is) throws IOException
+  {
+    jParser = JSON_FACTORY.createJsonParser(is);
     JsonToken current = jParser.nextToken();
     if (current != JsonToken.START_ARRAY) {
-      System.err.println("Not an array");
+      close();
+      throw new ParseException("Not an array: " + current);
     }
+    mCount = 0;
+  }
+
+  /**
+   * Reads the next contact of the array opened with {@link #open}.
+   *
+   * @return the contact, or null at the end of the array
+   */
+  public RawContact nextContact() throws IOException
+  {
     // loop until token equal to "}"
     RawContact c = null;
     while (true) {
-      current = jParser.nextToken();
+      JsonToken current = jParser.nextToken();
       if (current == JsonToken.START_OBJECT) {
         c = new RawContact();
         c.setAddr(new RawAddress());
         c.setPrivateAddr(new RawAddress());
         c.setPostalAddr(new RawAddress());
-        Log.i(Parser.class.getSimpleName(), "create RawContact");
+        if (LOG_CONTACTS) {
+          Log.v(TAG, "create RawContact");
+        }
         continue;
       }
 
       if (current == JsonToken.END_OBJECT) {
-        c.finalize();
-        serverDirtyList.add(c);
-        Log.i(Parser.class.getSimpleName(), "finalize RawContact, current size: " + serverDirtyList.size());
-        continue;
+        c.complete();
+        mCount++;
+        if (LOG_CONTACTS) {
+          Log.v(TAG, "complete RawContact, current size: " + mCount);
+        }
+        return c;
       }
 
-      if (current == JsonToken.END_ARRAY) {
-        Log.i(Parser.class.getSimpleName(), "Array End reached: " + serverDirtyList.size());
-        break;
+      if (current == JsonToken.END_ARRAY || current == null) {
+        Log.i(TAG, "Array End reached: " + mCount);
+        return null;
       }
 
-      String fieldname = jParser.getCurrentName();
-
-      if (fieldname.equals("contactStatus") == true) {
-        String contactStatus = getString();
-        c.setContactStatus(contactStatus);
-      } else if ("firstName".equals(fieldname)) {
-        c.setFirstName(getString());
-      } else if (fieldname.equals("name")) {
-        String text = getString();
-        c.setLastName(text);
-      } else if (fieldname.equals("privateEmail")) {
-        c.setHomeEmail(getString());
-      } else if (fieldname.equals("email")) {
-        c.setWorkEmail(getString());
-      } else if (fieldname.equals("privateMobilePhone")) {
-        c.setHomeMobilePhone(getString());
-      } else if (fieldname.equals("mobilePhone")) {
-        c.setWorkMobilePhone(getString());
-      } else if (fieldname.equals("privatePhone")) {
-        c.setHomePhone(getString());
-      } else if (fieldname.equals("businessPhone")) {
-        c.setWorkPhone(getString());
-      } else if (fieldname.equals("fax")) {
-        c.setWorkFax(getString());
-      } else if (fieldname.equals("organization")) {
-        c.setCompany(getString());
-      } else if (fieldname.equals("division")) {
-        c.setDivision(getString());
-      } else if (fieldname.equals("positionText")) {
-        c.setPosition(getString());
-      } else if (fieldname.equals("website")) {
-        String website = getString();
-        c.setWebsite(website);
-      } else if (fieldname.equals("comment")) {
-        c.setNote(getString());
-      } else if (fieldname.equals("addressStatus")) {
-        String addressStatus = getString();
-        c.setAddressStatus(addressStatus);
-      } else if (fieldname.equals("form")) {
-        c.setForm(getString());
-      } else if (fieldname.equals("addressText")) {
-        c.getAddr().setAddressText(getString());
-      } else if (fieldname.equals("zipCode")) {
-        c.getAddr().setZipCode(getString());
-      } else if (fieldname.equals("city")) {
-        c.getAddr().setCity(getString());
-      } else if (fieldname.equals("state")) {
-        c.getAddr().setState(getString());
-      } else if (fieldname.equals("country")) {
-        c.getAddr().setCountry(getString());
-      } else if (fieldname.equals("postalAddressText")) {
-        c.getPostalAddr().setAddressText(getString());
-      } else if (fieldname.equals("postalZipCode")) {
-        c.getPostalAddr().setZipCode(getString());
-      } else if (fieldname.equals("postalCity")) {
-        c.getPostalAddr().setCity(getString());
-      } else if (fieldname.equals("postalState")) {
-        c.getPostalAddr().setState(getString());
-      } else if (fieldname.equals("postalCountry")) {
-        c.getPostalAddr().setCountry(getString());
-      } else if (fieldname.equals("privateAddressText")) {
-        c.getPrivateAddr().setAddressText(getString());
-      } else if (fieldname.equals("privateZipCode")) {
-        c.getPrivateAddr().setZipCode(getString());
-      } else if (fieldname.equals("privateCity")) {
-        c.getPrivateAddr().setCity(getString());
-      } else if (fieldname.equals("privateState")) {
-        c.getPrivateAddr().setState(getString());
-      } else if (fieldname.equals("privateCountry")) {
-        c.getPrivateAddr().setCountry(getString());
-      } else if (fieldname.equals("id")) {
-        c.setServerContactId(getLong());
-      } else if (fieldname.equals("image")) {
-        String base64Image = getString();
-        try {
-          c.setAvatar(Base64.decode(base64Image, Base64.DEFAULT));
-        }catch (Exception ex){
-          Log.e(Parser.class.getSimpleName(),  ex.getMessage(), ex);
-        }
-      } else if (fieldname.equals("communicationLanguage")) {
-        c.setCommunicationLanguage(getString());
-      } else if (fieldname.equals("publicKey")) {
-        c.setPublicKey(getString());
-      } else if (fieldname.equals("deleted")) {
-        c.setDeleted(getBoolean());
-      } else if (fieldname.equals("lastUpdate")) {
-        c.setLastUpdate(getString());
-      } else {
-        //System.err.println("missed: " + fieldname);
-        getString();
+      final Field field = field(jParser.getCurrentName());
+      if (field == null) {
+        // Unknown field: skip its value, whatever its shape, without
+        // materializing it
+        jParser.nextToken();
+        jParser.skipChildren();
+        continue;
+      }
+
+      switch (field) {
+        case CONTACT_STATUS:
+          c.setContactStatus(getString());
+          break;
+        case FIRST_NAME:
+          c.setFirstName(getString());
+          break;
+        case NAME:
+          c.setLastName(getString());
+          break;
+        case PRIVATE_EMAIL:
+          c.setHomeEmail(getString());
+          break;
+        case EMAIL:
+          c.setWorkEmail(getString());
+          break;
+        case PRIVATE_MOBILE_PHONE:
+          c.setHomeMobilePhone(getString());
+          break;
+        case MOBILE_PHONE:
+          c.setWorkMobilePhone(getString());
+          break;
+        case PRIVATE_PHONE:
+          c.setHomePhone(getString());
+          break;
+        case BUSINESS_PHONE:
+          c.setWorkPhone(getString());
+          break;
+        case FAX:
+          c.setWorkFax(getString());
+          break;
+        case ORGANIZATION:
+          c.setCompany(getString());
+          break;
+        case DIVISION:
+          c.setDivision(getString());
+          break;
+        case POSITION_TEXT:
+          c.setPosition(getString());
+          break;
+        case WEBSITE:
+          c.setWebsite(getString());
+          break;
+        case COMMENT:
+          c.setNote(getString());
+          break;
+        case ADDRESS_STATUS:
+          c.setAddressStatus(getString());
+          break;
+        case FORM:
+          c.setForm(getString());
+          break;
+        case ADDRESS_TEXT:
+          c.getAddr().setAddressText(getString());
+          break;
+        case ZIP_CODE:
+          c.getAddr().setZipCode(getString());
+          break;
+        case CITY:
+          c.getAddr().setCity(getString());
+          break;
+        case STATE:
+          c.getAddr().setState(getString());
+          break;
+        case COUNTRY:
+          c.getAddr().setCountry(getString());
+          break;
+        case POSTAL_ADDRESS_TEXT:
+          c.getPostalAddr().setAddressText(getString());
+          break;
+        case POSTAL_ZIP_CODE:
+          c.getPostalAddr().setZipCode(getString());
+          break;
+        case POSTAL_CITY:
+          c.getPostalAddr().setCity(getString());
+          break;
+        case POSTAL_STATE:
+          c.getPostalAddr().setState(getString());
+          break;
+        case POSTAL_COUNTRY:
+          c.getPostalAddr().setCountry(getString());
+          break;
+        case PRIVATE_ADDRESS_TEXT:
+          c.getPrivateAddr().setAddressText(getString());
+          break;
+        case PRIVATE_ZIP_CODE:
+          c.getPrivateAddr().setZipCode(getString());
+          break;
+        case PRIVATE_CITY:
+          c.getPrivateAddr().setCity(getString());
+          break;
+        case PRIVATE_STATE:
+          c.getPrivateAddr().setState(getString());
+          break;
+        case PRIVATE_COUNTRY:
+          c.getPrivateAddr().setCountry(getString());
+          break;
+        case ID:
+          c.setServerContactId(getLong());
+          break;
+        case IMAGE:
+          // Kept as received; it is scaled when it is written, and only if
+          // it differs from the stored one
+          c.setAvatar(getBinary());
+          break;
+        case COMMUNICATION_LANGUAGE:
+          c.setCommunicationLanguage(getString());
+          break;
+        case PUBLIC_KEY:
+          c.setPublicKey(getString());
+          break;
+        case DELETED:
+          c.setDeleted(getBoolean());
+          break;
+        case LAST_UPDATE:
+          c.setLastUpdate(getString());
+          break;
       }
 
 
@@ -209,16 +445,110 @@ public class Parser
       //      }
 
     }
-    jParser.close();
+  }
+
+  /**
+   * Releases the underlying stream.
+   */
+  public void close() throws IOException
+  {
+    if (jParser != null) {
+      jParser.close();
+      jParser = null;
+    }
+  }
+
+  /**
+   * Pull-style access to the contacts of the array opened with {@link #open}. Read failures
+   * surface as {@link ParseException}. Nothing is read ahead beyond the next contact, so
+   * memory stays bounded by the caller's pace.
+   */
+  public Iterator<RawContact> iterator()
+  {
+    return new Iterator<RawContact>()
+    {
+      private RawContact mNext;
+
+      private boolean mDone;
+
+      @Override
+      public boolean hasNext()
+      {
+        if (mNext == null && !mDone) {
+          try {
+            mNext = nextContact();
+          } catch (IOException e) {
+            throw new ParseException(e.getMessage(), e);
+          }
+          mDone = mNext == null;
+        }
+        return mNext != null;
+      }
+
+      @Override
+      public RawContact next()
+      {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final RawContact next = mNext;
+        mNext = null;
+        return next;
+      }
+
+      @Override
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  public void parseImpl(final ContactHandler handler, final InputStream is, Context context) throws
+      Exception
+  {
+    open(is);
+    try {
+      RawContact c;
+      while ((c = nextContact()) != null) {
+        if (!handler.onContact(c)) {
+          Log.i(TAG, "Stopped by handler after " + mCount);
+          break;
+        }
+      }
+    } finally {
+      close();
+    }
   }
 
   public void parse(final ArrayList<RawContact> serverDirtyList, final InputStream is, Context context)
+  {
+    parse(new ContactHandler()
+    {
+      @Override
+      public boolean onContact(RawContact contact)
+      {
+        serverDirtyList.add(contact);
+        return true;
+      }
+    }, is, context);
+  }
+
+  /**
+   * Parses the contact array and hands each contact to the handler while the
+   * rest of the stream is still being read.
+   *
+   * @param handler receives the contacts in stream order
+   * @param is      the response stream
+   * @param context the context, may be null
+   */
+  public void parse(final ContactHandler handler, final InputStream is, Context context)
   {
     try {
-      parseImpl(serverDirtyList, is, context);
+      parseImpl(handler, is, context);
     } catch (Exception e) {
-      Log.e(Parser.class.getSimpleName(), "Crash",  e);
-      throw new ParseException(e.getMessage());
+      Log.e(TAG, "Crash",  e);
+      throw new ParseException(e.getMessage(), e);
     }
 
   }
@@ -52,6 +52,17 @@ final public class RawContact
   /** The tag used to log to adb console. **/
   private static final String TAG = "RawContact";
 
+  /**
+   * Mixed into every fingerprint. Bump it whenever the fields that go into
+   * the fingerprint, or the way they are written to the provider, change, so
+   * that all contacts are applied once more.
+   */
+  private static final long FINGERPRINT_VERSION = 3;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
   // private String fullName;
 
   private String firstName;
@@ -117,6 +128,13 @@ final public class RawContact
 
   private String lastUpdate;
 
+  private long fingerprint;
+
+  /**
+   * SHA-1 of the avatar as received, see {@link AvatarCache#hash}
+   */
+  private String avatarHash;
+
   /**
    * Instantiates a new Raw contact.
    */
@@ -312,6 +330,7 @@ final public class RawContact
       final boolean deleted = !contact.isNull("deleted") ? contact
           .getBoolean("deleted") : false;
       rc.setDeleted(deleted);
+      rc.fingerprint = rc.computeFingerprint();
       return rc;
 
     } catch (final Exception ex) {
@@ -874,7 +893,11 @@ final public class RawContact
     this.form = form;
   }
 
-  public void finalize()
+  /**
+   * Derives the sync state, the default website, the avatar hash and the fingerprint once all
+   * fields have been set. The parser calls it when a contact's closing brace has been read.
+   */
+  public void complete()
   {
     if (website == null || website.trim().equals("")) {
       website = RawContact.PF_MOBILE_CONTACT_VIEW_BASE_URL + serverContactId;
@@ -891,6 +914,85 @@ final public class RawContact
     if (syncState == 0) {
       Log.w(TAG, "Can not convert date to millis: " + lastUpdate);
     }
+    avatarHash = avatar != null ? AvatarCache.hash(avatar) : null;
+    fingerprint = computeFingerprint();
+  }
+
+  /**
+   * Returns a 64-bit fingerprint of all fields that are synced into the
+   * contacts provider, computed when the contact was parsed. Two contacts
+   * with the same fingerprint produce the same provider rows.
+   *
+   * @return the fingerprint, never 0
+   */
+  public long getFingerprint()
+  {
+    return fingerprint;
+  }
+
+  /**
+   * FNV-1a over the synced fields. Strings are hashed per UTF-16 unit, and
+   * null is hashed differently from the empty string. The avatar is left out;
+   * it is written separately and tracked by {@link #getAvatarHash()}.
+   */
+  private long computeFingerprint()
+  {
+    long h = hash(FNV_OFFSET_BASIS, FINGERPRINT_VERSION);
+    h = hash(h, serverContactId);
+    h = hash(h, deleted ? 1 : 0);
+    h = hash(h, firstName);
+    h = hash(h, lastName);
+    h = hash(h, homeEmail);
+    h = hash(h, workEmail);
+    h = hash(h, homeMobilePhone);
+    h = hash(h, workMobilePhone);
+    h = hash(h, homePhone);
+    h = hash(h, workPhone);
+    h = hash(h, workFax);
+    h = hash(h, company);
+    h = hash(h, division);
+    h = hash(h, position);
+    h = hash(h, website);
+    h = hash(h, note);
+    h = hash(h, addr);
+    h = hash(h, privateAddr);
+    h = hash(h, postalAddr);
+    return h != 0 ? h : 1;
+  }
+
+  private static long hash(long h, long value)
+  {
+    for (int i = 0; i < 8; i++) {
+      h = (h ^ (value & 0xff)) * FNV_PRIME;
+      value >>>= 8;
+    }
+    return h;
+  }
+
+  private static long hash(long h, String value)
+  {
+    if (value == null) {
+      return hash(h, -1);
+    }
+    h = hash(h, value.length());
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      h = (h ^ (c & 0xff)) * FNV_PRIME;
+      h = (h ^ (c >>> 8)) * FNV_PRIME;
+    }
+    return h;
+  }
+
+  private static long hash(long h, RawAddress address)
+  {
+    if (address == null) {
+      return hash(h, -1);
+    }
+    h = hash(h, address.getAddressText());
+    h = hash(h, address.getZipCode());
+    h = hash(h, address.getCity());
+    h = hash(h, address.getState());
+    return hash(h, address.getCountry());
   }
 
   public void setContactStatus(final String contactStatus)
@@ -906,6 +1008,17 @@ final public class RawContact
   public void setAvatar(final byte[] avatar)
   {
     this.avatar = avatar;
+    // Hashed once, by complete()
+    this.avatarHash = null;
+  }
+
+  /**
+   * @return the hex SHA-1 of the avatar as received from the server, or null without avatar or
+   * before {@link #complete()}
+   */
+  public String getAvatarHash()
+  {
+    return avatarHash;
   }
 
   public void setLastUpdate(final String lastUpdate)
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import android.text.TextUtils;
+
+import de.micromata.projectforge.android.sync.util.LongSet;
+
+/**
+ * High-water mark of the server changes applied locally: the highest
+ * lastUpdate we have seen, plus the serverIds seen with exactly that
+ * lastUpdate.
+ * <p>
+ * The next sync asks the server for everything modified since that timestamp,
+ * inclusive, so changes committed later with the same timestamp are not lost.
+ * The ids seen at the timestamp let us drop the part of that overlap we
+ * already applied.
+ * <p>
+ * A change that was received but could not be applied holds the watermark
+ * at its timestamp, see {@link #hold}.
+ * <p>
+ * While the server sends its changes in lastUpdate order, the watermark can be
+ * checkpointed during the sync: a {@link Checkpoint} taken when a batch is
+ * handed over is passed to the {@link CheckpointListener} once that batch is
+ * committed, so a sync that is killed resumes from there. A change that
+ * arrives out of order ends checkpointing for the sync and resets the
+ * checkpoint to where the sync started.
+ */
+public final class SyncWatermark
+{
+  private static final char ID_SEPARATOR = ',';
+
+  /**
+   * Persists checkpoints of a running sync
+   */
+  public interface CheckpointListener
+  {
+    /**
+     * @param timestamp the timestamp to persist, as {@link #encodeTimestamp()}
+     * @param seenIds   the serverIds to persist, as {@link #encodeSeenIds()}
+     */
+    void onCheckpoint(String timestamp, String seenIds);
+  }
+
+  /**
+   * The watermark at some point of the sync
+   */
+  public static final class Checkpoint
+  {
+    private final long mTimestamp;
+
+    private final long[] mSeen;
+
+    private Checkpoint(long timestamp, long[] seen)
+    {
+      mTimestamp = timestamp;
+      mSeen = seen;
+    }
+  }
+
+  /**
+   * The watermark the sync started from, used to drop already applied changes
+   */
+  private final long mStartTimestamp;
+
+  private final LongSet mStartSeen;
+
+  /**
+   * The watermark advanced by the changes of this sync
+   */
+  private long mTimestamp;
+
+  private final LongSet mSeen;
+
+  /**
+   * The lowest timestamp of a change that could not be applied, Long.MAX_VALUE if there is none
+   */
+  private long mHeld = Long.MAX_VALUE;
+
+  /**
+   * False once a change arrived with a lower timestamp than one before it
+   */
+  private boolean mMonotonic = true;
+
+  private CheckpointListener mCheckpointListener;
+
+  private SyncWatermark(long timestamp, LongSet seen)
+  {
+    mStartTimestamp = timestamp;
+    mStartSeen = seen;
+    mTimestamp = timestamp;
+    mSeen = new LongSet(seen.size());
+    for (long serverId : seen.toArray()) {
+      mSeen.add(serverId);
+    }
+  }
+
+  /**
+   * Restores a watermark from its persisted form.
+   *
+   * @param timestamp the persisted timestamp, may be empty
+   * @param seenIds   the persisted serverIds at that timestamp, may be empty
+   * @return the watermark, at 0 if nothing was persisted
+   */
+  public static SyncWatermark decode(String timestamp, String seenIds)
+  {
+    long start = 0;
+    final LongSet seen = new LongSet();
+    if (!TextUtils.isEmpty(timestamp)) {
+      start = Long.parseLong(timestamp);
+      if (!TextUtils.isEmpty(seenIds)) {
+        for (String id : TextUtils.split(seenIds, String.valueOf(ID_SEPARATOR))) {
+          seen.add(Long.parseLong(id));
+        }
+      }
+    }
+    return new SyncWatermark(start, seen);
+  }
+
+  /**
+   * @return true if nothing has ever been synced
+   */
+  public boolean isInitial()
+  {
+    return mStartTimestamp == 0;
+  }
+
+  /**
+   * @return the timestamp to ask the server for changes from, inclusive
+   */
+  public long getStartTimestamp()
+  {
+    return mStartTimestamp;
+  }
+
+  /**
+   * Returns true if the change was already applied by a previous sync. The
+   * server only sends changes from the start timestamp on, so only the ones
+   * at exactly that timestamp can match. A change whose lastUpdate could not
+   * be read has a sync state of 0 and is always applied.
+   *
+   * @param rawContact a contact received from the server
+   * @return true if the change can be dropped
+   */
+  public boolean isApplied(RawContact rawContact)
+  {
+    return rawContact.getSyncState() == mStartTimestamp
+        && mStartSeen.contains(rawContact.getServerContactId());
+  }
+
+  /**
+   * Moves the watermark past a change that was applied.
+   *
+   * @param rawContact the contact that was applied
+   */
+  public void advance(RawContact rawContact)
+  {
+    final long syncState = rawContact.getSyncState();
+    if (syncState < mTimestamp && mMonotonic) {
+      // An earlier checkpoint may cover this change, which isn't applied yet
+      mMonotonic = false;
+      if (mCheckpointListener != null) {
+        mCheckpointListener.onCheckpoint(Long.toString(mStartTimestamp), encode(mStartSeen.toArray()));
+      }
+    }
+    if (syncState > mTimestamp) {
+      mTimestamp = syncState;
+      mSeen.clear();
+    }
+    if (syncState == mTimestamp) {
+      mSeen.add(rawContact.getServerContactId());
+    }
+  }
+
+  /**
+   * Keeps the watermark from moving past a change that could not be applied, so the next sync
+   * asks for it again. Which of the other changes at that timestamp were applied is not tracked;
+   * they are fetched again too and skipped by their fingerprint.
+   *
+   * @param rawContact the contact that was not applied
+   */
+  public void hold(RawContact rawContact)
+  {
+    mHeld = Math.min(mHeld, rawContact.getSyncState());
+  }
+
+  /**
+   * @return true if a change could not be applied
+   */
+  public boolean isHeld()
+  {
+    return mHeld <= mTimestamp;
+  }
+
+  /**
+   * @param listener persists the checkpoints of this sync, null for none
+   */
+  public void setCheckpointListener(CheckpointListener listener)
+  {
+    mCheckpointListener = listener;
+  }
+
+  /**
+   * Captures the watermark with every change advanced so far.
+   *
+   * @return the checkpoint, null if the sync can't be checkpointed
+   */
+  public Checkpoint checkpoint()
+  {
+    if (mCheckpointListener == null || !mMonotonic || isHeld()) {
+      return null;
+    }
+    return new Checkpoint(mTimestamp, mSeen.toArray());
+  }
+
+  /**
+   * Persists a checkpoint once all changes it covers are applied.
+   *
+   * @param checkpoint the checkpoint taken before, may be null
+   */
+  public void commit(Checkpoint checkpoint)
+  {
+    if (checkpoint != null && mMonotonic && !isHeld()) {
+      mCheckpointListener.onCheckpoint(Long.toString(checkpoint.mTimestamp), encode(checkpoint.mSeen));
+    }
+  }
+
+  /**
+   * @return the timestamp to persist
+   */
+  public String encodeTimestamp()
+  {
+    return Long.toString(isHeld() ? Math.max(mHeld, mStartTimestamp) : mTimestamp);
+  }
+
+  /**
+   * @return the serverIds at the timestamp to persist
+   */
+  public String encodeSeenIds()
+  {
+    if (isHeld()) {
+      return "";
+    }
+    return encode(mSeen.toArray());
+  }
+
+  private static String encode(long[] seen)
+  {
+    final StringBuilder sb = new StringBuilder();
+    for (long serverId : seen) {
+      if (sb.length() > 0) {
+        sb.append(ID_SEPARATOR);
+      }
+      sb.append(serverId);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString()
+  {
+    return isHeld() ? mHeld + " (held)" : mTimestamp + "/" + mSeen.size();
+  }
+}
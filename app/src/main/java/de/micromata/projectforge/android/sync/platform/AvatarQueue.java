@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.micromata.projectforge.android.sync.Constants;
+
+/**
+ * Persistent queue of the avatars the text phase of a sync left for later.
+ * The sync only spools the image it received to the app's files directory;
+ * scaling it and writing it into the provider happens in a background job,
+ * one photo at a time, via {@link #writeNext}.
+ * <p>
+ * There is at most one entry per contact: a newer avatar replaces one that
+ * is still waiting. The entries survive process death, so an interrupted
+ * avatar phase picks up where it stopped. An avatar that can't be written
+ * stays queued and is retried after the others; it only leaves the queue
+ * once it was written or its contact is gone, because the next sync is
+ * incremental and would not fetch it again. The queue is bounded by size;
+ * avatars that don't fit are dropped and queued again by the next sync,
+ * because their hash was never recorded in the provider.
+ */
+public final class AvatarQueue {
+
+    private static final String TAG = "AvatarQueue";
+
+    private static final String DIRECTORY = "avatar-queue";
+
+    static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    private static AvatarQueue sInstance;
+
+    private final File mDirectory;
+
+    /**
+     * serverId to file name, oldest first
+     */
+    private final LinkedHashMap<Long, String> mEntries = new LinkedHashMap<Long, String>();
+
+    private long mBytes;
+
+    /**
+     * Entries that failed since the last avatar was written. Once all of the
+     * queue has failed, {@link #writeNext} stops until it is called again.
+     */
+    private int mFailures;
+
+    /**
+     * @return the process-wide queue in the app's files directory
+     */
+    public static synchronized AvatarQueue get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AvatarQueue(new File(context.getFilesDir(),
+                    DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    AvatarQueue(File directory) {
+        mDirectory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Can't create " + directory);
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    final long ma = a.lastModified();
+                    final long mb = b.lastModified();
+                    return ma < mb ? -1 : (ma == mb ? 0 : 1);
+                }
+            });
+            for (File file : files) {
+                final long serverId = serverId(file.getName());
+                if (serverId <= 0 || hash(file.getName()) == null) {
+                    // A spool that was cut off, or something we don't know
+                    file.delete();
+                    continue;
+                }
+                final String previous = mEntries.put(serverId, file.getName());
+                if (previous != null) {
+                    remove(previous);
+                }
+                mBytes += file.length();
+            }
+        }
+    }
+
+    /**
+     * Spools an avatar for the background phase, replacing an older one of
+     * the same contact.
+     *
+     * @return false if the queue is full and the avatar was dropped
+     */
+    synchronized boolean enqueue(long serverId, String hash, byte[] avatar) {
+        final String name = serverId + "_" + hash;
+        final String previous = mEntries.remove(serverId);
+        if (name.equals(previous)) {
+            // Already waiting, it just moves to the end
+            mEntries.put(serverId, name);
+            return true;
+        }
+        if (previous != null) {
+            remove(previous);
+        }
+        if (mBytes + avatar.length > MAX_BYTES) {
+            Log.d(TAG, "Queue full, avatar of " + serverId + " left for the next sync");
+            return false;
+        }
+        if (!write(new File(mDirectory, name), avatar)) {
+            return false;
+        }
+        mEntries.put(serverId, name);
+        mBytes += avatar.length;
+        return true;
+    }
+
+    /**
+     * @return true if no avatar is waiting
+     */
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * @return the number of avatars waiting
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Writes the oldest avatar into the display photo of its raw contact and
+     * removes it from the queue. Avatars of contacts that no longer exist are
+     * dropped. An avatar that could not be written moves to the end of the
+     * queue.
+     *
+     * @return false if the queue was empty, or all of it failed since the
+     * last avatar was written; the next call starts over
+     */
+    public boolean writeNext(Context context) {
+        final long serverId;
+        final String name;
+        synchronized (this) {
+            final Iterator<Map.Entry<Long, String>> it = mEntries.entrySet()
+                    .iterator();
+            if (!it.hasNext() || mFailures >= mEntries.size()) {
+                mFailures = 0;
+                return false;
+            }
+            final Map.Entry<Long, String> eldest = it.next();
+            serverId = eldest.getKey();
+            name = eldest.getValue();
+        }
+
+        // The expensive part runs without the lock, so the sync may go on
+        // queueing
+        // A spool that is gone or empty has nothing left to write
+        final File file = new File(mDirectory, name);
+        final boolean written = file.length() == 0
+                || writePhoto(context, serverId, name, read(file));
+
+        synchronized (this) {
+            // A newer avatar may have replaced this one in the meantime
+            if (name.equals(mEntries.get(serverId))) {
+                mEntries.remove(serverId);
+                if (written) {
+                    remove(name);
+                } else {
+                    mEntries.put(serverId, name);
+                }
+            }
+            mFailures = written ? 0 : mFailures + 1;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the avatar was written to every raw contact of
+     * serverId, or there is none
+     */
+    private static boolean writePhoto(Context context, long serverId,
+                                      String name, byte[] avatar) {
+        if (avatar == null) {
+            return false;
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        final ContactStore store = new ResolverContactStore(resolver);
+        boolean written = true;
+        try {
+            final long[] rawContactIds = lookup(resolver, serverId);
+            if (rawContactIds == null) {
+                return false;
+            }
+            for (long rawContactId : rawContactIds) {
+                written &= DisplayPhotoWriter.write(context, store,
+                        rawContactId, hash(name), avatar);
+            }
+        } catch (final RuntimeException e) {
+            // The provider reports bad values as runtime exceptions
+            Log.e(TAG, "Writing avatar of " + serverId + " failed", e);
+            return false;
+        }
+        if (!written) {
+            Log.w(TAG, "Avatar of " + serverId + " not written, retrying later");
+        }
+        return written;
+    }
+
+    /**
+     * @return the raw contacts synced from serverId, in any of our accounts;
+     * null if the provider could not be queried
+     */
+    private static long[] lookup(ContentResolver resolver, long serverId) {
+        final Cursor c = resolver.query(RawContacts.CONTENT_URI,
+                new String[]{RawContacts._ID}, RawContacts.ACCOUNT_TYPE
+                        + "='" + Constants.ACCOUNT_TYPE + "' AND "
+                        + RawContacts.SOURCE_ID + "=? AND "
+                        + RawContacts.DELETED + "=0",
+                new String[]{String.valueOf(serverId)}, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            final long[] ids = new long[c.getCount()];
+            for (int i = 0; i < ids.length && c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long serverId(String name) {
+        final int separator = name.indexOf('_');
+        if (separator <= 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String hash(String name) {
+        final int separator = name.indexOf('_');
+        if (separator < 0 || name.endsWith(".tmp")) {
+            return null;
+        }
+        return name.substring(separator + 1);
+    }
+
+    private void remove(String name) {
+        final File file = new File(mDirectory, name);
+        mBytes -= file.length();
+        file.delete();
+    }
+
+    private static byte[] read(File file) {
+        final long length = file.length();
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        final byte[] data = new byte[(int) length];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int offset = 0;
+            int n;
+            while (offset < data.length
+                    && (n = in.read(data, offset, data.length - offset)) > 0) {
+                offset += n;
+            }
+            return offset == data.length ? data : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + file, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes to a temporary file and renames it, so a crash never leaves a
+     * truncated entry.
+     */
+    private boolean write(File file, byte[] data) {
+        final File tmp = new File(mDirectory, file.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write " + file, e);
+            tmp.delete();
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
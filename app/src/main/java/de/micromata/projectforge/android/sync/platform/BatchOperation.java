@@ -18,58 +18,481 @@ package de.micromata.projectforge.android.sync.platform;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.net.Uri;
 import android.os.RemoteException;
-import android.provider.ContactsContract;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import de.micromata.projectforge.android.sync.client.RawContact;
 
 /**
  * This class handles execution of batch mOperations on Contacts provider.
+ * <p>
+ * The batch keeps an estimate of the serialized size of its mOperations,
+ * photo blobs included, and adapts the number of mOperations it wants per
+ * applyBatch call to the latency measured on the previous calls. Callers ask
+ * {@link #isFull()} to find out when to flush.
+ * <p>
+ * mOperations are grouped per contact between {@link #beginContact()} and
+ * {@link #endContact()}. mOperations added outside a group form a group of
+ * their own. A group is never split across two applyBatch calls, because the
+ * Data inserts of a new contact refer back to its RawContacts insert.
+ * <p>
+ * The batch is applied in slices of whole groups, each in one applyBatch call
+ * without yield points, so a slice either commits completely or not at all.
+ * A slice that fails is split in halves and retried until the contact that
+ * breaks it is isolated; that contact is quarantined, everything else is
+ * committed. Back references are rebased for the slice they end up in.
+ * <p>
+ * Sync batches suspend aggregation on the raw contacts they insert or update,
+ * so the provider aggregates each of them once when the sync is done (see
+ * {@link ContactManager#resumeAggregation}) rather than once per batch.
+ * A bulk batch is meant for the first sync of an empty account: it always
+ * fills up to {@link #MAX_OPERATIONS}, because nobody is looking at the
+ * directory yet.
  */
 final public class BatchOperation {
 
+    /**
+     * Upper bound for the estimated payload of one applyBatch call. The Binder
+     * transaction buffer is 1 MB per process and shared with every other
+     * transaction in flight, and a batch is only checked between contacts, so
+     * this leaves room for the contact that crosses the line.
+     */
+    static final int MAX_BATCH_BYTES = 384 * 1024;
+
+    /**
+     * Upper bound for the mOperations of one batch. It is applied in slices of
+     * at most {@link #MAX_OPERATIONS_PER_SLICE}.
+     */
+    static final int MAX_OPERATIONS = 1000;
+
+    /**
+     * The ContactsProvider refuses more than 500 mOperations between yield
+     * points, which here means within one applyBatch call.
+     */
+    static final int MAX_OPERATIONS_PER_SLICE = 499;
+
+    static final int MAX_OPERATIONS_PER_CONTACT = MAX_OPERATIONS_PER_SLICE;
+
+    static final int MIN_OPERATIONS = 25;
+
+    private static final int INITIAL_OPERATIONS = 100;
+
+    /**
+     * How long a single applyBatch call should keep the provider busy.
+     */
+    private static final long TARGET_APPLY_MILLIS = 250;
+
+    /**
+     * Rough Parcel cost of an operation without its values: type, uri,
+     * selection and flags.
+     */
+    private static final int OPERATION_OVERHEAD_BYTES = 160;
+
+    /**
+     * Batch size learned from the apply latency, shared by all batches so a
+     * new batch, or a new sync, starts where the previous one ended. Batches
+     * are applied one at a time, so there is only ever one writer.
+     */
+    private static volatile int sTargetOperations = INITIAL_OPERATIONS;
+
+    /**
+     * Smoothed apply cost per operation, negative until the first measurement
+     */
+    private static volatile double sMillisPerOperation = -1;
+
     private final String TAG = "BatchOperation";
 
-    private final ContentResolver mResolver;
+    private final ContactStore mStore;
 
     // List for storing the batch mOperations
     private final ArrayList<ContentProviderOperation> mOperations;
 
+    private int mEstimatedBytes;
+
+    /**
+     * Index of the first operation of every group in the batch
+     */
+    private int[] mGroupStarts = new int[64];
+
+    /**
+     * The contact of every group, null for groups without one
+     */
+    private RawContact[] mGroupContacts = new RawContact[64];
+
+    private int mGroupCount;
+
+    /**
+     * Per operation, what is needed to rebuild it with another back
+     * reference; null for the operations without one
+     */
+    private final ArrayList<BackReference> mBackReferences;
+
+    /**
+     * Contacts whose mOperations could not be applied by the last apply
+     */
+    private final ArrayList<RawContact> mQuarantined = new ArrayList<RawContact>();
+
+    private boolean mContactOpen;
+
+    private final boolean mBulk;
+
+    private final boolean mSuspendAggregation;
+
     public BatchOperation(Context context, ContentResolver resolver) {
-        mResolver = resolver;
+        this(context, resolver, false, false);
+    }
+
+    /**
+     * @param bulk               true for a bulk import batch
+     * @param suspendAggregation true to suspend aggregation of the raw
+     *                           contacts written
+     */
+    public BatchOperation(Context context, ContentResolver resolver,
+                          boolean bulk, boolean suspendAggregation) {
+        this(context, new ResolverContactStore(resolver), bulk,
+                suspendAggregation);
+    }
+
+    /**
+     * @param store              where the batch is applied
+     * @param bulk               true for a bulk import batch
+     * @param suspendAggregation true to suspend aggregation of the raw
+     *                           contacts written
+     */
+    public BatchOperation(Context context, ContactStore store, boolean bulk,
+                          boolean suspendAggregation) {
+        mStore = store;
         mOperations = new ArrayList<ContentProviderOperation>();
+        mBackReferences = new ArrayList<BackReference>();
+        mBulk = bulk;
+        mSuspendAggregation = suspendAggregation;
     }
 
     public int size() {
         return mOperations.size();
     }
 
+    /**
+     * @return true for a bulk import batch
+     */
+    public boolean isBulk() {
+        return mBulk;
+    }
+
+    /**
+     * @return true if raw contacts written by this batch are left for
+     * {@link ContactManager#resumeAggregation} to aggregate
+     */
+    public boolean isAggregationSuspended() {
+        return mSuspendAggregation;
+    }
+
+    /**
+     * @return the estimated serialized size of the queued mOperations
+     */
+    public int estimatedBytes() {
+        return mEstimatedBytes;
+    }
+
+    /**
+     * @return true once the batch has reached its adaptive operation target
+     * or its byte budget and should be applied
+     */
+    public boolean isFull() {
+        return mOperations.size() >= (mBulk ? MAX_OPERATIONS : sTargetOperations)
+                || mEstimatedBytes >= MAX_BATCH_BYTES;
+    }
+
+    /**
+     * @return the number of contact groups in the batch
+     */
+    public int contactCount() {
+        return mGroupCount;
+    }
+
+    /**
+     * Starts an operation group. An open group is closed first.
+     */
+    public void beginContact() {
+        beginContact(null);
+    }
+
+    /**
+     * Starts the operation group of a contact. An open group is closed first.
+     *
+     * @param rawContact the contact, reported by {@link #getQuarantined()} if
+     *                   its group can't be applied
+     */
+    public void beginContact(RawContact rawContact) {
+        startGroup(rawContact);
+        mContactOpen = true;
+    }
+
+    /**
+     * Ends the operation group of the current contact; the batch may be
+     * applied again from here on. A group without operations is dropped.
+     */
+    public void endContact() {
+        if (mContactOpen && currentGroupStart() == mOperations.size()) {
+            mGroupContacts[--mGroupCount] = null;
+        }
+        mContactOpen = false;
+    }
+
+    private int currentGroupStart() {
+        return mGroupCount > 0 ? mGroupStarts[mGroupCount - 1] : 0;
+    }
+
+    private void startGroup(RawContact rawContact) {
+        if (mGroupCount > 0 && currentGroupStart() == mOperations.size()) {
+            // The previous group got no operations, take its place
+            mGroupCount--;
+        } else if (mGroupCount == mGroupStarts.length) {
+            mGroupStarts = Arrays.copyOf(mGroupStarts, mGroupCount * 2);
+            mGroupContacts = Arrays.copyOf(mGroupContacts, mGroupCount * 2);
+        }
+        mGroupContacts[mGroupCount] = rawContact;
+        mGroupStarts[mGroupCount++] = mOperations.size();
+    }
+
+    /**
+     * @return the index after the last operation of a group
+     */
+    private int groupEnd(int group) {
+        return group + 1 < mGroupCount ? mGroupStarts[group + 1]
+                : mOperations.size();
+    }
+
     public void add(ContentProviderOperation cpo) {
+        add(cpo, null);
+    }
+
+    /**
+     * Adds an operation and accounts for the size of the values it carries.
+     *
+     * @param cpo    the operation
+     * @param values the values the operation was built with, or null
+     */
+    public void add(ContentProviderOperation cpo, ContentValues values) {
+        add(cpo, values, null, -1);
+    }
+
+    /**
+     * Adds an insert whose column refers back to the result of an earlier
+     * operation of the same group.
+     *
+     * @param cpo           the insert
+     * @param values        the values the insert was built with
+     * @param column        the column set from the back reference, or null
+     * @param backReference index of the operation referred to
+     */
+    public void add(ContentProviderOperation cpo, ContentValues values,
+                    String column, int backReference) {
+        if (!mContactOpen) {
+            startGroup(null);
+        } else if (mOperations.size() - currentGroupStart()
+                >= MAX_OPERATIONS_PER_CONTACT) {
+            throw new IllegalStateException(
+                    "Too many operations for a single contact");
+        }
         mOperations.add(cpo);
+        mBackReferences.add(column != null ? new BackReference(column,
+                backReference, new ContentValues(values)) : null);
+        mEstimatedBytes += OPERATION_OVERHEAD_BYTES + estimateSize(values);
+    }
+
+    /**
+     * Estimates the Parcel size of a set of values: strings are written as
+     * UTF-16, blobs as raw bytes, each with a length and type prefix.
+     */
+    static int estimateSize(ContentValues values) {
+        if (values == null) {
+            return 0;
+        }
+        int size = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            size += 8 + 2 * entry.getKey().length();
+            final Object value = entry.getValue();
+            if (value instanceof String) {
+                size += 8 + 2 * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                size += 8 + ((byte[]) value).length;
+            } else {
+                size += 12;
+            }
+        }
+        return size;
     }
 
     public Uri execute() {
-        Uri result = null;
+        final ContentProviderResult[] results = apply();
+        if ((results != null) && (results.length > 0) && results[0] != null) {
+            return results[0].uri;
+        }
+        return null;
+    }
 
+    /**
+     * Applies the queued mOperations and clears the batch. Contacts that
+     * could not be applied are reported by {@link #getQuarantined()}.
+     *
+     * @return the provider results, null where an operation was not
+     * applied; or null if the batch was empty
+     */
+    public ContentProviderResult[] apply() {
         if (mOperations.size() == 0) {
-            return result;
+            return null;
+        }
+        if (mContactOpen) {
+            throw new IllegalStateException(
+                    "Cannot apply a batch in the middle of a contact");
         }
-        // Apply the mOperations to the content provider
+        final ContentProviderResult[] results =
+                new ContentProviderResult[mOperations.size()];
+        mQuarantined.clear();
         try {
-            ContentProviderResult[] results = mResolver.applyBatch(ContactsContract.AUTHORITY,
-                    mOperations);
-            if ((results != null) && (results.length > 0))
-                result = results[0].uri;
-        } catch (final OperationApplicationException e1) {
-            Log.e(TAG, "storing contact data failed", e1);
-        } catch (final RemoteException e2) {
-            Log.e(TAG, "storing contact data failed", e2);
+            int from = 0;
+            while (from < mGroupCount) {
+                int to = from + 1;
+                while (to < mGroupCount && groupEnd(to) - mGroupStarts[from]
+                        <= MAX_OPERATIONS_PER_SLICE) {
+                    to++;
+                }
+                applyGroups(from, to, results);
+                from = to;
+            }
+        } finally {
+            // Whatever has no result did not make it, including what was
+            // left when an unexpected error broke off the loop
+            for (int i = 0; i < mGroupCount; i++) {
+                if (results[mGroupStarts[i]] == null
+                        && mGroupContacts[i] != null) {
+                    mQuarantined.add(mGroupContacts[i]);
+                }
+            }
+            mOperations.clear();
+            mBackReferences.clear();
+            Arrays.fill(mGroupContacts, 0, mGroupCount, null);
+            mEstimatedBytes = 0;
+            mGroupCount = 0;
+        }
+        return results;
+    }
+
+    /**
+     * @return the contacts that the last {@link #apply()} left out because
+     * their mOperations failed
+     */
+    public List<RawContact> getQuarantined() {
+        return mQuarantined;
+    }
+
+    /**
+     * Applies the groups [from, to) in one call. If that fails, the two
+     * halves are applied separately, down to single groups.
+     */
+    private void applyGroups(int from, int to,
+                             ContentProviderResult[] results) {
+        final int start = mGroupStarts[from];
+        final int end = groupEnd(to - 1);
+        Exception failure;
+        try {
+            final long begin = SystemClock.elapsedRealtime();
+            final ContentProviderResult[] slice = mStore.applyBatch(
+                    slice(start, end));
+            adaptTarget(end - start, SystemClock.elapsedRealtime() - begin);
+            System.arraycopy(slice, 0, results, start, slice.length);
+            return;
+        } catch (final OperationApplicationException e) {
+            failure = e;
+        } catch (final RemoteException e) {
+            failure = e;
+        } catch (final RuntimeException e) {
+            // The provider reports bad values as runtime exceptions
+            failure = e;
+        }
+        if (to - from == 1) {
+            final RawContact rawContact = mGroupContacts[from];
+            Log.e(TAG, "storing contact data failed, quarantined "
+                    + (rawContact != null ? rawContact.getServerContactId()
+                    : "operation " + start), failure);
+            return;
+        }
+        Log.w(TAG, "storing " + (to - from) + " contacts failed, splitting: "
+                + failure);
+        final int mid = (from + to) >>> 1;
+        applyGroups(from, mid, results);
+        applyGroups(mid, to, results);
+    }
+
+    /**
+     * @return the mOperations [start, end) with their back references
+     * rebased to the start of the slice
+     */
+    private ArrayList<ContentProviderOperation> slice(int start, int end) {
+        final ArrayList<ContentProviderOperation> slice =
+                new ArrayList<ContentProviderOperation>(end - start);
+        for (int i = start; i < end; i++) {
+            final ContentProviderOperation operation = mOperations.get(i);
+            final BackReference reference = mBackReferences.get(i);
+            if (start == 0 || reference == null) {
+                slice.add(operation);
+            } else {
+                slice.add(ContentProviderOperation
+                        .newInsert(operation.getUri())
+                        .withValues(reference.values)
+                        .withValueBackReference(reference.column,
+                                reference.index - start)
+                        .withYieldAllowed(operation.isYieldAllowed())
+                        .build());
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * Feeds the measured latency of an applyBatch call back into the number
+     * of mOperations the next batch should hold.
+     */
+    private void adaptTarget(int operations, long elapsedMillis) {
+        final double sample = (double) elapsedMillis / operations;
+        final double millisPerOperation = sMillisPerOperation < 0 ? sample
+                : 0.7 * sMillisPerOperation + 0.3 * sample;
+        sMillisPerOperation = millisPerOperation;
+        final int target = millisPerOperation > 0
+                ? (int) (TARGET_APPLY_MILLIS / millisPerOperation)
+                : MAX_OPERATIONS;
+        sTargetOperations = Math.max(MIN_OPERATIONS,
+                Math.min(MAX_OPERATIONS, target));
+        Log.d(TAG, operations + " ops in " + elapsedMillis
+                + " ms, next batch " + sTargetOperations + " ops");
+    }
+
+    /**
+     * The inputs of an insert with a back reference
+     */
+    private static final class BackReference {
+
+        final String column;
+
+        final int index;
+
+        final ContentValues values;
+
+        BackReference(String column, int index, ContentValues values) {
+            this.column = column;
+            this.index = index;
+            this.values = values;
         }
-        mOperations.clear();
-        return result;
     }
 }
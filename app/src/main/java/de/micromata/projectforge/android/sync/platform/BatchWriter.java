@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.micromata.projectforge.android.sync.client.RawContact;
+import de.micromata.projectforge.android.sync.client.SyncWatermark;
+import de.micromata.projectforge.android.sync.util.LongIntMap;
+
+/**
+ * Applies batches on a single writer thread while the sync thread fills the
+ * next one, so building operations and provider I/O overlap. At most one
+ * batch is in flight: {@link #submit()} waits for the previous batch before
+ * handing over the current one.
+ * <p>
+ * The results of an applied batch are fed into the {@link RawContactIndex}
+ * on the sync thread, which is the only thread that touches the index. So
+ * are the contacts the batch had to quarantine: the watermark is held before
+ * them, so the next sync fetches them again. Once a batch is committed, the
+ * watermark checkpoint taken when it was handed over is committed as well.
+ */
+final class BatchWriter {
+
+    private static final String TAG = "BatchWriter";
+
+    private final Context mContext;
+
+    private final ContactStore mStore;
+
+    private final RawContactIndex mIndex;
+
+    private final SyncWatermark mWatermark;
+
+    private final ExecutorService mExecutor;
+
+    private final boolean mBulk;
+
+    private BatchOperation mBatch;
+
+    private Future<ContentProviderResult[]> mInFlight;
+
+    private BatchOperation mInFlightBatch;
+
+    private SyncWatermark.Checkpoint mInFlightCheckpoint;
+
+    private LongIntMap mInFlightPending;
+
+    /**
+     * Batches always suspend aggregation; the sync resumes it when it is done.
+     *
+     * @param bulk true to fill bulk import batches, see {@link BatchOperation}
+     */
+    BatchWriter(Context context, ContactStore store, RawContactIndex index,
+                SyncWatermark watermark, boolean bulk) {
+        mContext = context;
+        mStore = store;
+        mIndex = index;
+        mWatermark = watermark;
+        mBulk = bulk;
+        mBatch = new BatchOperation(context, store, bulk, true);
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ContactWriter");
+            }
+        });
+    }
+
+    /**
+     * @return the batch being filled
+     */
+    BatchOperation batch() {
+        return mBatch;
+    }
+
+    /**
+     * Hands the current batch to the writer thread and starts a new one.
+     * Waits for the batch submitted before, if it is still being applied.
+     */
+    void submit() throws InterruptedException {
+        if (mBatch.size() == 0) {
+            return;
+        }
+        awaitInFlight();
+        final BatchOperation batch = mBatch;
+        mInFlightBatch = batch;
+        // Every contact advanced so far is in this batch or an earlier one
+        mInFlightCheckpoint = mWatermark.checkpoint();
+        mInFlightPending = mIndex.detachPending();
+        mInFlight = mExecutor.submit(new Callable<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] call() {
+                return batch.apply();
+            }
+        });
+        mBatch = new BatchOperation(mContext, mStore, mBulk, true);
+    }
+
+    /**
+     * Applies everything queued so far and waits until it is committed.
+     */
+    void drain() throws InterruptedException {
+        submit();
+        awaitInFlight();
+    }
+
+    /**
+     * Waits for the batch in flight and records its inserts, and the contacts
+     * it quarantined, in the index and the watermark.
+     */
+    private void awaitInFlight() throws InterruptedException {
+        if (mInFlight == null) {
+            return;
+        }
+        ContentProviderResult[] results = null;
+        try {
+            results = mInFlight.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "storing contact data failed", e.getCause());
+        } finally {
+            // An interrupted wait leaves the batch to the writer thread, but
+            // its results are no longer of interest
+            mInFlight = null;
+        }
+        mIndex.resolvePending(mInFlightPending, results);
+        mInFlightPending = null;
+        for (RawContact rawContact : mInFlightBatch.getQuarantined()) {
+            mIndex.invalidate(rawContact.getServerContactId());
+            mWatermark.hold(rawContact);
+        }
+        if (results != null) {
+            mWatermark.commit(mInFlightCheckpoint);
+        }
+        mInFlightBatch = null;
+        mInFlightCheckpoint = null;
+    }
+
+    /**
+     * Stops the writer thread once the batch in flight, if any, is done.
+     * Whatever is left in the current batch is dropped.
+     */
+    void close() {
+        mExecutor.shutdown();
+    }
+}
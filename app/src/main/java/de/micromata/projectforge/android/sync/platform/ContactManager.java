@@ -39,13 +39,17 @@ import android.provider.ContactsContract.Settings;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import de.micromata.projectforge.android.sync.Constants;
+import de.micromata.projectforge.android.sync.client.AvatarCache;
+import de.micromata.projectforge.android.sync.client.ContactStream;
+import de.micromata.projectforge.android.sync.client.DisplayPhotoLimits;
 import de.micromata.projectforge.android.sync.client.RawAddress;
 import de.micromata.projectforge.android.sync.client.RawContact;
+import de.micromata.projectforge.android.sync.client.SyncWatermark;
+import de.micromata.projectforge.android.sync.platform.DataSnapshot.SnapshotQuery;
+import de.micromata.projectforge.android.sync.util.LongObjectMap;
 
 /**
  * Class for managing contacts sync related mOperations
@@ -64,6 +68,11 @@ public class ContactManager {
      */
     public static final String GROUP_NAME = "ProjectForge";
 
+    /**
+     * Raw contacts whose aggregation is resumed per provider transaction
+     */
+    static final int RESUME_CHUNK_SIZE = 250;
+
     /**
      * Ensure project forge group exists long.
      *
@@ -112,92 +121,294 @@ public class ContactManager {
      * database. Typically this list of contacts would have been returned from
      * the server, and we want to apply those changes locally.
      *
-     * @param context        The context of Authenticator Activity
-     * @param account        The username for the account
-     * @param rawContacts    The list of contacts to update
-     * @param groupId        the group id
-     * @param lastSyncMarker The previous server sync-state
-     * @return the server syncState that should be used in our next sync request.
+     * @param context     The context of Authenticator Activity
+     * @param account     The username for the account
+     * @param rawContacts The list of contacts to update
+     * @param groupId     the group id
+     * @param watermark   The previous server sync-state, advanced past every
+     *                    change applied here
      */
-    public static synchronized long updateContacts(Context context,
-                                                   String account, List<RawContact> rawContacts, long groupId,
-                                                   long lastSyncMarker) {
+    public static void updateContacts(Context context, String account,
+                                      List<RawContact> rawContacts, long groupId,
+                                      SyncWatermark watermark) {
+        try {
+            updateContacts(context, account, ContactStream.of(rawContacts),
+                    groupId, watermark);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Applies the contacts of a stream while it is still being filled. The
+     * calling thread reads the provider and builds the operations, a writer
+     * thread applies them; the stream's producer runs ahead by at most its
+     * capacity.
+     * <p>
+     * This is the text phase of the sync. Changed avatars are only spooled to
+     * the {@link AvatarQueue}; they are written by the avatar phase later.
+     * <p>
+     * The first sync of an account without raw contacts is a bulk import:
+     * there is nothing to compare against and batches are filled to the
+     * maximum. Aggregation of every raw contact written is suspended until
+     * the sync is done.
+     *
+     * @param context     The context of Authenticator Activity
+     * @param account     The username for the account
+     * @param rawContacts The contacts to update, drained to the end
+     * @param groupId     the group id
+     * @param watermark   The previous server sync-state, advanced past every
+     *                    change applied here
+     * @throws InterruptedException if the sync was cancelled; the watermark
+     *                              must not be persisted then
+     */
+    public static synchronized void updateContacts(Context context,
+                                                   String account, ContactStream rawContacts, long groupId,
+                                                   SyncWatermark watermark) throws InterruptedException {
 
-        long currentSyncMarker = lastSyncMarker - 1 * 60 * 60 * 1000;
         final ContentResolver resolver = context.getContentResolver();
-        final BatchOperation batchOperation = new BatchOperation(context,
-                resolver);
-        final List<RawContact> newUsers = new ArrayList<RawContact>();
+
+        // Resolve serverIds against one scan of the account instead of a
+        // provider query per contact.
+        final ContactStore store = new ResolverContactStore(resolver);
+        final RawContactIndex index = RawContactIndex.load(store, account);
+        final boolean bulk = watermark.isInitial() && index.size() == 0;
+        if (bulk) {
+            Log.i(TAG, "Empty account, bulk import");
+        }
+        final BatchWriter writer = new BatchWriter(context, store, index,
+                watermark, bulk);
 
         Log.d(TAG, "In SyncContacts");
-        for (final RawContact rawContact : rawContacts) {
-            // The server returns a syncState (x) value with each contact
-            // record.
-            // The syncState is sequential, so higher values represent more
-            // recent
-            // changes than lower values. We keep track of the highest value we
-            // see, and consider that a "high water mark" for the changes we've
-            // received from the server. That way, on our next sync, we can just
-            // ask for changes that have occurred since that most-recent change.
-            if (rawContact.getSyncState() > currentSyncMarker) {
-                currentSyncMarker = rawContact.getSyncState();
+        final long[] chunkRawContactIds = new long[DataSnapshot.CHUNK_SIZE];
+        final ArrayList<RawContact> chunk = new ArrayList<RawContact>(
+                DataSnapshot.CHUNK_SIZE);
+        try {
+            // Take whatever the parser has ready, up to a full chunk, rather
+            // than waiting for the network to fill one.
+            while (rawContacts.drainTo(chunk, DataSnapshot.CHUNK_SIZE) > 0) {
+                // Load the existing Data rows of the whole chunk with one
+                // query; an import has none
+                int existing = 0;
+                for (int i = 0; !bulk && i < chunk.size(); i++) {
+                    final RawContact rawContact = chunk.get(i);
+                    final long rawContactId = rawContact.getRawContactId() > 0
+                            ? rawContact.getRawContactId()
+                            : index.lookup(rawContact.getServerContactId());
+                    if (rawContactId != 0 && !rawContact.isDeleted()
+                            && !watermark.isApplied(rawContact)
+                            && !isUnchanged(rawContact, index)) {
+                        chunkRawContactIds[existing++] = rawContactId;
+                    }
+                }
+                final DataSnapshot snapshot = DataSnapshot.load(store,
+                        chunkRawContactIds, existing);
+
+                for (final RawContact rawContact : chunk) {
+                    syncContact(context, store, account, rawContact,
+                            groupId, index, snapshot, writer, watermark);
+                }
+                chunk.clear();
             }
 
-            // If the server returned a clientId for this user, then it's likely
-            // that the user was added here, and was just pushed to the server
-            // for the first time. In that case, we need to update the main
-            // row for this contact so that the RawContacts.SOURCE_ID value
-            // contains the correct serverId.
-            final long rawContactId;
-            final boolean updateServerId;
-            if (rawContact.getRawContactId() > 0) {
-                rawContactId = rawContact.getRawContactId();
-                updateServerId = true;
-            } else {
-                long serverContactId = rawContact.getServerContactId();
-                rawContactId = lookupRawContact(resolver, serverContactId);
-                updateServerId = false;
+            writer.drain();
+        } finally {
+            writer.close();
+        }
+        // Also picks up a sync that was cancelled last time
+        resumeAggregation(resolver, account);
+        Log.d(TAG, "New sync marker " + watermark);
+    }
+
+    /**
+     * Applies one contact received from the server.
+     */
+    private static void syncContact(Context context, ContactStore store,
+                                    String account, RawContact rawContact,
+                                    long groupId, RawContactIndex index,
+                                    DataSnapshot snapshot, BatchWriter writer,
+                                    SyncWatermark watermark)
+            throws InterruptedException {
+        // The window we asked for overlaps the previous one at its
+        // timestamp; drop what the previous sync already applied.
+        if (watermark.isApplied(rawContact)) {
+            return;
+        }
+
+        // Nothing to read or write if the contact is exactly what we
+        // applied last time. The avatar is tracked apart from the text, so
+        // either one may have changed without the other.
+        final String avatarHash = rawContact.getAvatarHash();
+        final boolean textUnchanged = isUnchanged(rawContact, index);
+        final boolean photoChanged = rawContact.getAvatar() != null
+                && !rawContact.isDeleted()
+                && !index.isPhotoUnchanged(rawContact.getServerContactId(),
+                avatarHash);
+        if (textUnchanged && !photoChanged) {
+            watermark.advance(rawContact);
+            return;
+        }
+
+        // If the server returned a clientId for this user, then it's likely
+        // that the user was added here, and was just pushed to the server
+        // for the first time. In that case, we need to update the main
+        // row for this contact so that the RawContacts.SOURCE_ID value
+        // contains the correct serverId.
+        final long serverContactId = rawContact.getServerContactId();
+        final long rawContactId;
+        final boolean updateServerId;
+        if (rawContact.getRawContactId() > 0) {
+            rawContactId = rawContact.getRawContactId();
+            updateServerId = true;
+        } else {
+            // The same contact was queued for insertion earlier and is not
+            // committed yet; apply it first so we get its rawContactId.
+            if (index.isPending(serverContactId)) {
+                writer.drain();
             }
+            rawContactId = index.lookup(serverContactId);
+            updateServerId = false;
+        }
 
-            if (rawContactId != 0) {
-                if (!rawContact.isDeleted()) {
-                    updateContact(context, resolver, rawContact,
-                            updateServerId, true, true, true, rawContactId,
-                            batchOperation);
-                } else {
-                    deleteContact(context, rawContactId, batchOperation);
+        // Everything queued for this contact is applied in the same batch.
+        // The avatar is not part of it: it is spooled for the avatar phase,
+        // which runs after the sync (see AvatarQueue).
+        final BatchOperation batchOperation = writer.batch();
+        batchOperation.beginContact(rawContact);
+        if (rawContactId != 0) {
+            if (!rawContact.isDeleted()) {
+                if (!textUnchanged) {
+                    // Contacts that were only resolved through a flush above
+                    // are not part of the chunk's snapshot.
+                    final List<DataSnapshot.Row> existingRows = snapshot
+                            .contains(rawContactId) ? snapshot.rows(rawContactId)
+                            : DataSnapshot.load(store, new long[]{rawContactId},
+                            1).rows(rawContactId);
+                    updateContact(context, rawContact, updateServerId, true,
+                            false, true, rawContactId, existingRows,
+                            index.hasProfile(serverContactId), batchOperation);
+                    index.addProfile(serverContactId);
+                    index.putFingerprint(serverContactId,
+                            rawContact.getFingerprint());
                 }
-            } else {
-                Log.d(TAG, "In addContact");
-                if (!rawContact.isDeleted()) {
-                    newUsers.add(rawContact);
-                    addContact(context, account, rawContact, groupId, true,
-                            batchOperation);
+                if (photoChanged) {
+                    AvatarQueue.get(context).enqueue(serverContactId,
+                            avatarHash, rawContact.getAvatar());
+                    index.putPhotoHash(serverContactId, avatarHash);
                 }
+            } else {
+                deleteContact(context, rawContactId, batchOperation);
+                index.remove(serverContactId);
             }
-            // A sync adapter should batch operations on multiple contacts,
-            // because it will make a dramatic performance difference.
-            // (UI updates, etc)
-            if (batchOperation.size() >= 10) {
-                if (true) {
-                    try {
-                        batchOperation.execute();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        } else {
+            Log.d(TAG, "In addContact");
+            if (!rawContact.isDeleted()) {
+                index.addPending(serverContactId, batchOperation.size());
+                addContact(context, account, rawContact, groupId, true, false,
+                        batchOperation);
+                index.addProfile(serverContactId);
+                index.putFingerprint(serverContactId,
+                        rawContact.getFingerprint());
+                if (rawContact.getAvatar() != null) {
+                    AvatarQueue.get(context).enqueue(serverContactId,
+                            avatarHash, rawContact.getAvatar());
+                    index.putPhotoHash(serverContactId, avatarHash);
                 }
+            }
+        }
+        batchOperation.endContact();
+
+        // The server returns a syncState (x) value with each contact
+        // record.
+        // The syncState is sequential, so higher values represent more
+        // recent
+        // changes than lower values. We keep track of the highest value we
+        // see, and consider that a "high water mark" for the changes we've
+        // received from the server. That way, on our next sync, we can just
+        // ask for changes that have occurred since that most-recent change.
+        // It only moves once the contact is queued: a drain above commits a
+        // checkpoint, which must not cover a contact that isn't in the batch.
+        watermark.advance(rawContact);
+
+        // A sync adapter should batch operations on multiple contacts,
+        // because it will make a dramatic performance difference.
+        // (UI updates, etc). The batch decides from its size estimate and
+        // the measured apply latency when it has enough; we only ask
+        // between contacts.
+        if (batchOperation.isFull()) {
+            writer.submit();
+        }
+    }
 
+    /**
+     * Lets the provider aggregate the raw contacts of the account that a sync
+     * left with aggregation suspended. They are switched back to the default
+     * mode in slices of {@link #RESUME_CHUNK_SIZE}, each in a transaction of
+     * its own, so the contacts list is never locked for the whole directory.
+     *
+     * @param resolver    the content resolver to use
+     * @param accountName the account to resume
+     * @return the number of raw contacts resumed
+     */
+    static int resumeAggregation(ContentResolver resolver, String accountName) {
+        final Cursor c = resolver.query(RawContacts.CONTENT_URI,
+                new String[]{RawContacts._ID},
+                RawContacts.ACCOUNT_TYPE + "='" + Constants.ACCOUNT_TYPE
+                        + "' AND " + RawContacts.ACCOUNT_NAME + "=? AND "
+                        + RawContacts.AGGREGATION_MODE + "="
+                        + RawContacts.AGGREGATION_MODE_SUSPENDED,
+                new String[]{accountName}, null);
+        if (c == null) {
+            return 0;
+        }
+        final long[] ids;
+        try {
+            ids = new long[c.getCount()];
+            for (int i = 0; i < ids.length && c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
             }
+        } finally {
+            c.close();
         }
 
-        if (true) {
-            try {
-                batchOperation.execute();
-            } catch (Exception e) {
-                e.printStackTrace();
+        final Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER,
+                        "true").build();
+        final ContentValues values = new ContentValues();
+        values.put(RawContacts.AGGREGATION_MODE,
+                RawContacts.AGGREGATION_MODE_DEFAULT);
+        int resumed = 0;
+        for (int start = 0; start < ids.length; start += RESUME_CHUNK_SIZE) {
+            final int end = Math.min(ids.length, start + RESUME_CHUNK_SIZE);
+            final StringBuilder selection = new StringBuilder(
+                    RawContacts.AGGREGATION_MODE + "="
+                            + RawContacts.AGGREGATION_MODE_SUSPENDED + " AND "
+                            + RawContacts._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
             }
+            selection.append(')');
+            resumed += resolver.update(uri, values, selection.toString(),
+                    null);
+        }
+        if (resumed > 0) {
+            Log.d(TAG, "Resumed aggregation of " + resumed + " raw contacts");
         }
-        return currentSyncMarker;
+        return resumed;
+    }
+
+    /**
+     * @return true if the server contact is identical to the one last applied
+     * to its raw contact
+     */
+    private static boolean isUnchanged(RawContact rawContact,
+                                       RawContactIndex index) {
+        return rawContact.getRawContactId() <= 0 && !rawContact.isDeleted()
+                && index.isUnchanged(rawContact.getServerContactId(),
+                rawContact.getFingerprint());
     }
 
     /**
@@ -208,10 +419,10 @@ public class ContactManager {
      * @param account The account that we're interested in syncing
      * @return a Map of Users that are considered "dirty". Key is the serverContactId
      */
-    public static Map<Long, RawContact> getDirtyContacts(Context context,
-                                                         Account account) {
+    public static LongObjectMap<RawContact> getDirtyContacts(Context context,
+                                                             Account account) {
         Log.i(TAG, "*** Looking for local dirty contacts");
-        Map<Long, RawContact> dirtyContacts = new HashMap<Long, RawContact>();
+        final LongObjectMap<RawContact> dirtyContacts = new LongObjectMap<RawContact>();
 
         final ContentResolver resolver = context.getContentResolver();
         final Cursor c = resolver.query(DirtyQuery.CONTENT_URI,
@@ -333,10 +544,22 @@ public class ContactManager {
     public static void addContact(Context context, String accountName,
                                   RawContact rawContact, long groupId, boolean inSync,
                                   BatchOperation batchOperation) {
+        addContact(context, accountName, rawContact, groupId, inSync, true,
+                batchOperation);
+    }
+
+    /**
+     * @param withAvatar should the avatar be inserted as part of the batch
+     */
+    private static void addContact(Context context, String accountName,
+                                   RawContact rawContact, long groupId, boolean inSync,
+                                   boolean withAvatar, BatchOperation batchOperation) {
 
         // Put the data in the contacts provider
         final ContactOperations contactOp = ContactOperations.createNewContact(
-                context, rawContact.getServerContactId(), accountName, inSync,
+                context, rawContact.getServerContactId(), accountName,
+                rawContact.getFingerprint(),
+                withAvatar ? rawContact.getAvatarHash() : null, inSync,
                 batchOperation);
 
         contactOp
@@ -372,7 +595,7 @@ public class ContactManager {
                 .addAddr(rawContact.getPostalAddr(),
                         StructuredPostal.TYPE_CUSTOM, "Postal")
                 .addGroupMembership(groupId)
-                .addAvatar(rawContact.getAvatar());
+                .addAvatar(withAvatar ? photo(context, rawContact) : null);
 
         // If we have a serverId, then go ahead and create our status profile.
         // Otherwise skip it - and we'll create it after we sync-up to the
@@ -407,6 +630,29 @@ public class ContactManager {
                                      RawContact rawContact, boolean updateServerId,
                                      boolean updateStatus, boolean updateAvatar, boolean inSync,
                                      long rawContactId, BatchOperation batchOperation) {
+        final DataSnapshot snapshot = DataSnapshot.load(
+                new ResolverContactStore(resolver), new long[]{rawContactId}, 1);
+        final boolean hasProfile = lookupProfile(resolver,
+                rawContact.getServerContactId()) > 0;
+        updateContact(context, rawContact, updateServerId, updateStatus,
+                updateAvatar, inSync, rawContactId,
+                snapshot.rows(rawContactId), hasProfile, batchOperation);
+    }
+
+    /**
+     * Updates a single contact, diffing against Data rows that were already
+     * loaded by a {@link DataSnapshot}.
+     *
+     * @param existingRows the Data rows currently stored for rawContactId
+     * @param hasProfile   whether the contact already has a profile row
+     * @see #updateContact(Context, ContentResolver, RawContact, boolean,
+     * boolean, boolean, boolean, long, BatchOperation)
+     */
+    private static void updateContact(Context context, RawContact rawContact,
+                                      boolean updateServerId, boolean updateStatus,
+                                      boolean updateAvatar, boolean inSync, long rawContactId,
+                                      List<DataSnapshot.Row> existingRows, boolean hasProfile,
+                                      BatchOperation batchOperation) {
 
         boolean existingMobilePhone = false;
         boolean existingHomePhone = false;
@@ -435,141 +681,142 @@ public class ContactManager {
 
         boolean existingAvatar = false;
 
-        final Cursor c = resolver.query(DataQuery.CONTENT_URI,
-                DataQuery.PROJECTION, DataQuery.SELECTION,
-                new String[]{String.valueOf(rawContactId)}, null);
         final ContactOperations contactOp = ContactOperations
                 .updateExistingContact(context, rawContactId, inSync,
                         batchOperation);
-        try {
-            // Iterate over the existing rows of data, and update each one
-            // with the information we received from the server.
-            while (c.moveToNext()) {
-                final long id = c.getLong(DataQuery.COLUMN_ID);
-                final String mimeType = c.getString(DataQuery.COLUMN_MIMETYPE);
-                final Uri uri = ContentUris
-                        .withAppendedId(Data.CONTENT_URI, id);
-                if (mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+        // Before any Data row changes, so the provider doesn't aggregate the
+        // contact on every batch that touches it
+        if (batchOperation.isAggregationSuspended()) {
+            contactOp.suspendAggregation(ContentUris.withAppendedId(
+                    RawContacts.CONTENT_URI, rawContactId));
+        }
+        // Iterate over the existing rows of data, and update each one
+        // with the information we received from the server.
+        for (final DataSnapshot.Row c : existingRows) {
+            final long id = c.id;
+            final String mimeType = c.mimeType;
+            final Uri uri = ContentUris
+                    .withAppendedId(Data.CONTENT_URI, id);
+            if (mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+                contactOp
+                        .updateName(uri,
+                                c.getString(SnapshotQuery.COLUMN_GIVEN_NAME),
+                                c.getString(SnapshotQuery.COLUMN_FAMILY_NAME),
+                                rawContact.getFirstName(),
+                                rawContact.getLastName());
+            } else if (mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
+
+                final int type = c.getInt(SnapshotQuery.COLUMN_PHONE_TYPE);
+
+                if (type == Phone.TYPE_MOBILE) {
+                    existingMobilePhone = true;
                     contactOp
-                            .updateName(uri,
-                                    c.getString(DataQuery.COLUMN_GIVEN_NAME),
-                                    c.getString(DataQuery.COLUMN_FAMILY_NAME),
-                                    rawContact.getFirstName(),
-                                    rawContact.getLastName());
-                } else if (mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
+                            .updatePhone(
+                                    rawContact.getHomeMobilePhone(),
+                                    c.getString(SnapshotQuery.COLUMN_PHONE_NUMBER),
+                                    uri);
+                } else if (type == Phone.TYPE_HOME) {
+                    existingHomePhone = true;
+                    contactOp
+                            .updatePhone(
+                                    rawContact.getHomePhone(),
+                                    c.getString(SnapshotQuery.COLUMN_PHONE_NUMBER),
+                                    uri);
+                } else if (type == Phone.TYPE_WORK) {
+                    existingWorkPhone = true;
+                    contactOp
+                            .updatePhone(
+                                    rawContact.getWorkPhone(),
+                                    c.getString(SnapshotQuery.COLUMN_PHONE_NUMBER),
+                                    uri);
+                } else if (type == Phone.TYPE_WORK_MOBILE) {
+                    existingWorkMobilePhone = true;
+                    contactOp
+                            .updatePhone(
+                                    rawContact.getWorkMobilePhone(),
+                                    c.getString(SnapshotQuery.COLUMN_PHONE_NUMBER),
+                                    uri);
 
-                    final int type = c.getInt(DataQuery.COLUMN_PHONE_TYPE);
+                } else if (type == Phone.TYPE_FAX_WORK) {
+                    existingWorkFax = true;
+                    contactOp
+                            .updatePhone(
+                                    rawContact.getWorkFax(),
+                                    c.getString(SnapshotQuery.COLUMN_PHONE_NUMBER),
+                                    uri);
+                }
+            } else if (mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
+                final int type = c.getInt(SnapshotQuery.COLUMN_EMAIL_TYPE);
+
+                if (type == Email.TYPE_HOME) {
+                    existingHomeEmail = true;
+                    contactOp.updateEmail(rawContact.getHomeEmail(),
+                            c.getString(SnapshotQuery.COLUMN_EMAIL_ADDRESS),
+                            uri);
+                } else if (type == Email.TYPE_WORK) {
+                    existingWorkEmail = true;
+                    contactOp.updateEmail(rawContact.getWorkEmail(),
+                            c.getString(SnapshotQuery.COLUMN_EMAIL_ADDRESS),
+                            uri);
+                }
+            } else if (mimeType.equals(Organization.CONTENT_ITEM_TYPE)) {
 
-                    if (type == Phone.TYPE_MOBILE) {
-                        existingMobilePhone = true;
-                        contactOp
-                                .updatePhone(
-                                        rawContact.getHomeMobilePhone(),
-                                        c.getString(DataQuery.COLUMN_PHONE_NUMBER),
-                                        uri);
-                    } else if (type == Phone.TYPE_HOME) {
-                        existingHomePhone = true;
-                        contactOp
-                                .updatePhone(
-                                        rawContact.getHomePhone(),
-                                        c.getString(DataQuery.COLUMN_PHONE_NUMBER),
-                                        uri);
-                    } else if (type == Phone.TYPE_WORK) {
-                        existingWorkPhone = true;
-                        contactOp
-                                .updatePhone(
-                                        rawContact.getWorkPhone(),
-                                        c.getString(DataQuery.COLUMN_PHONE_NUMBER),
-                                        uri);
-                    } else if (type == Phone.TYPE_WORK_MOBILE) {
-                        existingWorkMobilePhone = true;
-                        contactOp
-                                .updatePhone(
-                                        rawContact.getWorkMobilePhone(),
-                                        c.getString(DataQuery.COLUMN_PHONE_NUMBER),
-                                        uri);
-
-                    } else if (type == Phone.TYPE_FAX_WORK) {
-                        existingWorkFax = true;
-                        contactOp
-                                .updatePhone(
-                                        rawContact.getWorkFax(),
-                                        c.getString(DataQuery.COLUMN_PHONE_NUMBER),
-                                        uri);
-                    }
-                } else if (mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
-                    final int type = c.getInt(DataQuery.COLUMN_EMAIL_TYPE);
-
-                    if (type == Email.TYPE_HOME) {
-                        existingHomeEmail = true;
-                        contactOp.updateEmail(rawContact.getHomeEmail(),
-                                c.getString(DataQuery.COLUMN_EMAIL_ADDRESS),
-                                uri);
-                    } else if (type == Email.TYPE_WORK) {
-                        existingWorkEmail = true;
-                        contactOp.updateEmail(rawContact.getWorkEmail(),
-                                c.getString(DataQuery.COLUMN_EMAIL_ADDRESS),
-                                uri);
-                    }
-                } else if (mimeType.equals(Organization.CONTENT_ITEM_TYPE)) {
-
-                    int type = c.getInt(DataQuery.COLUMN_ORGANIZATION_TYPE);
-
-                    if (type == Organization.TYPE_WORK) {
-                        existingOrganization = true;
-                        contactOp
-                                .updateOrganization(
-                                        rawContact.getCompany(),
-                                        rawContact.getDivision(),
-                                        rawContact.getPosition(),
-                                        c.getString(DataQuery.COLUMN_ORGANIZATION),
-                                        c.getString(DataQuery.COLUMN_ORGANIZATION_DIVISION),
-                                        c.getString(DataQuery.COLUMN_ORGANIZATION_POSITION),
-                                        uri);
-
-                    } else if (type == Organization.TYPE_CUSTOM) {
-                        // nothing yet
-                    } else if (type == Organization.TYPE_OTHER) {
-                        // nothing yet
-                    }
-                } else if (mimeType.equals(Website.CONTENT_ITEM_TYPE)) {
-                    existingWebsite = true;
-                    contactOp.updateWebiste(rawContact.getWebsite(),
-                            c.getString(DataQuery.COLUMN_WEBSITE), uri);
-                } else if (mimeType.equals(Note.CONTENT_ITEM_TYPE)) {
-                    existingNote = true;
-                    contactOp.updateNote(rawContact.getNote(),
-                            c.getString(DataQuery.COLUMN_NOTE), uri);
-                } else if (mimeType.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
-                    int type = c.getInt(DataQuery.COLUMN_ADDR_TYPE);
-
-                    if (type == StructuredPostal.TYPE_HOME) {
-                        existingAddrPrivate = true;
-                        RawAddress addr = convert(c);
-                        contactOp.updateAddr(rawContact.getPrivateAddr(), addr,
-                                uri);
-                    } else if (type == StructuredPostal.TYPE_WORK) {
-                        existingAddr = true;
-                        RawAddress addr = convert(c);
-                        contactOp.updateAddr(rawContact.getAddr(), addr, uri);
-                    } else if (type == StructuredPostal.TYPE_CUSTOM) {// TODO
-                        // compare
-                        // here
-                        // Label
-                        existingAddrPostal = true;
-                        RawAddress addr = convert(c);
-                        contactOp.updateAddr(rawContact.getPostalAddr(), addr,
-                                uri);
-
-                    } else if (mimeType.equals(Photo.CONTENT_ITEM_TYPE)) {
-                        existingAvatar = true;
-                        contactOp.updateAvatar(rawContact.getAvatar(), uri);
-                    }
+                int type = c.getInt(SnapshotQuery.COLUMN_ORGANIZATION_TYPE);
+
+                if (type == Organization.TYPE_WORK) {
+                    existingOrganization = true;
+                    contactOp
+                            .updateOrganization(
+                                    rawContact.getCompany(),
+                                    rawContact.getDivision(),
+                                    rawContact.getPosition(),
+                                    c.getString(SnapshotQuery.COLUMN_ORGANIZATION),
+                                    c.getString(SnapshotQuery.COLUMN_ORGANIZATION_DIVISION),
+                                    c.getString(SnapshotQuery.COLUMN_ORGANIZATION_POSITION),
+                                    uri);
+
+                } else if (type == Organization.TYPE_CUSTOM) {
+                    // nothing yet
+                } else if (type == Organization.TYPE_OTHER) {
+                    // nothing yet
                 }
-            } // while
-        } finally {
-            c.close();
-        }
+            } else if (mimeType.equals(Website.CONTENT_ITEM_TYPE)) {
+                existingWebsite = true;
+                contactOp.updateWebiste(rawContact.getWebsite(),
+                        c.getString(SnapshotQuery.COLUMN_WEBSITE), uri);
+            } else if (mimeType.equals(Note.CONTENT_ITEM_TYPE)) {
+                existingNote = true;
+                contactOp.updateNote(rawContact.getNote(),
+                        c.getString(SnapshotQuery.COLUMN_NOTE), uri);
+            } else if (mimeType.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
+                int type = c.getInt(SnapshotQuery.COLUMN_ADDR_TYPE);
+
+                if (type == StructuredPostal.TYPE_HOME) {
+                    existingAddrPrivate = true;
+                    RawAddress addr = convert(c);
+                    contactOp.updateAddr(rawContact.getPrivateAddr(), addr,
+                            uri);
+                } else if (type == StructuredPostal.TYPE_WORK) {
+                    existingAddr = true;
+                    RawAddress addr = convert(c);
+                    contactOp.updateAddr(rawContact.getAddr(), addr, uri);
+                } else if (type == StructuredPostal.TYPE_CUSTOM) {// TODO
+                    // compare
+                    // here
+                    // Label
+                    existingAddrPostal = true;
+                    RawAddress addr = convert(c);
+                    contactOp.updateAddr(rawContact.getPostalAddr(), addr,
+                            uri);
+
+                }
+            } else if (mimeType.equals(Photo.CONTENT_ITEM_TYPE)) {
+                existingAvatar = true;
+                if (updateAvatar) {
+                    contactOp.updateAvatar(photo(context, rawContact), uri);
+                }
+            }
+        } // for
 
         // Add the cell phone, if present and not updated above
         if (!existingMobilePhone) {
@@ -597,12 +844,12 @@ public class ContactManager {
             contactOp.addPhone(rawContact.getWorkFax(), Phone.TYPE_FAX_WORK);
         }
 
-        // Add the email address, if present and not updated above
-        if (!existingWorkEmail) {
+        // Add the email addresses, if present and not updated above
+        if (!existingHomeEmail) {
             contactOp.addEmail(rawContact.getHomeEmail(), Email.TYPE_HOME);
         }
 
-        if (!existingHomeEmail) {
+        if (!existingWorkEmail) {
             contactOp.addEmail(rawContact.getWorkEmail(), Email.TYPE_WORK);
         }
 
@@ -635,8 +882,8 @@ public class ContactManager {
         }
 
         // Add the avatar if we didn't update the existing avatar
-        if (!existingAvatar) {
-            contactOp.addAvatar(rawContact.getAvatar());
+        if (!existingAvatar && updateAvatar) {
+            contactOp.addAvatar(photo(context, rawContact));
         }
 
         // If we need to update the serverId of the contact record, take
@@ -651,24 +898,50 @@ public class ContactManager {
             contactOp.updateServerId(rawContact.getServerContactId(), uri);
         }
 
+        // Remember what we applied, so the next sync can skip this contact
+        // while the server copy stays the same, and its avatar while the
+        // photo stays the same.
+        if (rawContact.getFingerprint() != 0) {
+            final Uri uri = ContentUris.withAppendedId(RawContacts.CONTENT_URI,
+                    rawContactId);
+            if (updateAvatar) {
+                contactOp.updateFingerprint(rawContact.getFingerprint(),
+                        rawContact.getAvatarHash(), uri);
+            } else {
+                contactOp.updateFingerprint(rawContact.getFingerprint(), uri);
+            }
+        }
+
         // If we don't have a status profile, then create one. This could
         // happen for contacts that were created on the client - we don't
         // create the status profile until after the first sync...
-        final long serverId = rawContact.getServerContactId();
-        final long profileId = lookupProfile(resolver, serverId);
-        if (profileId <= 0) {
-            contactOp.addProfileAction(serverId);
+        if (!hasProfile) {
+            contactOp.addProfileAction(rawContact.getServerContactId());
+        }
+    }
+
+    /**
+     * @return the avatar of the contact scaled for the provider, or null if
+     * it has none. Processed avatars are cached by content hash.
+     */
+    private static byte[] photo(Context context, RawContact rawContact) {
+        final byte[] avatar = rawContact.getAvatar();
+        if (avatar == null || rawContact.getAvatarHash() == null) {
+            return avatar;
         }
+        return AvatarCache.get(context).getProcessed(
+                rawContact.getAvatarHash(), avatar,
+                DisplayPhotoLimits.getMaxDimension(context));
     }
 
-    private static RawAddress convert(Cursor c) {
+    private static RawAddress convert(DataSnapshot.Row c) {
 
         RawAddress address = new RawAddress(
-                c.getString(DataQuery.COLUMN_ADDR_STREET_HNR),
-                c.getString(DataQuery.COLUMN_ADDR_ZIPCODE),
-                c.getString(DataQuery.COLUMN_ADDR_CITY),
-                c.getString(DataQuery.COLUMN_ADDR_STATE),
-                c.getString(DataQuery.COLUMN_ADDR_COUNTRY));
+                c.getString(SnapshotQuery.COLUMN_ADDR_STREET_HNR),
+                c.getString(SnapshotQuery.COLUMN_ADDR_ZIPCODE),
+                c.getString(SnapshotQuery.COLUMN_ADDR_CITY),
+                c.getString(SnapshotQuery.COLUMN_ADDR_STATE),
+                c.getString(SnapshotQuery.COLUMN_ADDR_COUNTRY));
 
         return address;
     }
@@ -837,33 +1110,6 @@ public class ContactManager {
                         rawContactId), true, true).build());
     }
 
-    /**
-     * Returns the RawContact id for a sample SyncAdapter contact, or 0 if the
-     * sample SyncAdapter user isn't found.
-     *
-     * @param resolver        the content resolver to use
-     * @param serverContactId the sample SyncAdapter user ID to lookup
-     * @return the RawContact id, or 0 if not found
-     */
-    private static long lookupRawContact(ContentResolver resolver,
-                                         long serverContactId) {
-
-        long rawContactId = 0;
-        final Cursor c = resolver.query(UserIdQuery.CONTENT_URI,
-                UserIdQuery.PROJECTION, UserIdQuery.SELECTION,
-                new String[]{String.valueOf(serverContactId)}, null);
-        try {
-            if ((c != null) && c.moveToFirst()) {
-                rawContactId = c.getLong(UserIdQuery.COLUMN_RAW_CONTACT_ID);
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return rawContactId;
-    }
-
     /**
      * Returns the Data id for a sample SyncAdapter contact's profile row, or 0
      * if the sample SyncAdapter user isn't found.
@@ -1020,43 +1266,6 @@ public class ContactManager {
                 + ProjectforgeSyncAdapterColumns.DATA_PID + "=?";
     }
 
-    /**
-     * Constants for a query to find a contact given a sample SyncAdapter user
-     * ID.
-     */
-    final private static class UserIdQuery {
-
-        private UserIdQuery() {
-        }
-
-        /**
-         * The constant PROJECTION.
-         */
-        public final static String[] PROJECTION = new String[]{
-                RawContacts._ID, RawContacts.CONTACT_ID};
-
-        /**
-         * The constant COLUMN_RAW_CONTACT_ID.
-         */
-        public final static int COLUMN_RAW_CONTACT_ID = 0;
-        /**
-         * The constant COLUMN_LINKED_CONTACT_ID.
-         */
-        public final static int COLUMN_LINKED_CONTACT_ID = 1;
-
-        /**
-         * The constant CONTENT_URI.
-         */
-        public final static Uri CONTENT_URI = RawContacts.CONTENT_URI;
-
-        /**
-         * The constant SELECTION.
-         */
-        public static final String SELECTION = RawContacts.ACCOUNT_TYPE + "='"
-                + Constants.ACCOUNT_TYPE + "' AND " + RawContacts.SOURCE_ID
-                + "=?";
-    }
-
     /**
      * Constants for a query to find ProjectForgeSyncAdapter contacts that are
      * in need of syncing to the server. This should cover new, edited, and
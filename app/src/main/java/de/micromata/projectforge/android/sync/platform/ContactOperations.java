@@ -57,19 +57,6 @@ public class ContactOperations
 
   private boolean mIsNewContact;
 
-  /**
-   * Since we're sending a lot of contact provider operations in a single
-   * batched operation, we want to make sure that we "yield" periodically so
-   * that the Contact Provider can write changes to the DB, and can open a new
-   * transaction. This prevents ANR (application not responding) errors. The
-   * recommended time to specify that a yield is permitted is with the first
-   * operation on a particular contact. So if we're updating multiple fields
-   * for a single contact, we make sure that we call withYieldAllowed(true) on
-   * the first field that we update. We use mIsYieldAllowed to keep track of
-   * what value we should pass to withYieldAllowed().
-   */
-  private boolean mIsYieldAllowed;
-
   /**
    * Returns an instance of ContactOperations instance for adding new contact
    * to the platform contacts provider.
@@ -85,10 +72,53 @@ public class ContactOperations
       long userId, String accountName, boolean isSyncOperation,
       BatchOperation batchOperation)
   {
-    return new ContactOperations(context, userId, accountName,
+    return createNewContact(context, userId, accountName, 0,
+        isSyncOperation, batchOperation);
+  }
+
+  /**
+   * Returns an instance of ContactOperations instance for adding new contact
+   * to the platform contacts provider, stamped with the fingerprint of the
+   * server contact it is created from.
+   *
+   * @param context         the Authenticator Activity context
+   * @param userId          the userId of the sample SyncAdapter user object
+   * @param accountName     the username for the SyncAdapter account
+   * @param fingerprint     the fingerprint of the server contact, 0 for none
+   * @param isSyncOperation are we executing this as part of a sync operation?
+   * @param batchOperation  the batch operation
+   * @return instance of ContactOperations
+   */
+  public static ContactOperations createNewContact(Context context,
+      long userId, String accountName, long fingerprint,
+      boolean isSyncOperation, BatchOperation batchOperation)
+  {
+    return createNewContact(context, userId, accountName, fingerprint, null,
         isSyncOperation, batchOperation);
   }
 
+  /**
+   * Returns an instance of ContactOperations instance for adding new contact
+   * to the platform contacts provider, stamped with the fingerprint and the
+   * avatar hash of the server contact it is created from.
+   *
+   * @param context         the Authenticator Activity context
+   * @param userId          the userId of the sample SyncAdapter user object
+   * @param accountName     the username for the SyncAdapter account
+   * @param fingerprint     the fingerprint of the server contact, 0 for none
+   * @param photoHash       the hash of the avatar of the server contact, or null
+   * @param isSyncOperation are we executing this as part of a sync operation?
+   * @param batchOperation  the batch operation
+   * @return instance of ContactOperations
+   */
+  public static ContactOperations createNewContact(Context context,
+      long userId, String accountName, long fingerprint, String photoHash,
+      boolean isSyncOperation, BatchOperation batchOperation)
+  {
+    return new ContactOperations(context, userId, accountName, fingerprint,
+        photoHash, isSyncOperation, batchOperation);
+  }
+
   /**
    * Returns an instance of ContactOperations for updating existing contact in
    * the platform contacts provider.
@@ -118,7 +148,6 @@ public class ContactOperations
       BatchOperation batchOperation)
   {
     mValues = new ContentValues();
-    mIsYieldAllowed = true;
     mIsSyncOperation = isSyncOperation;
     mContext = context;
     mBatchOperation = batchOperation;
@@ -135,6 +164,41 @@ public class ContactOperations
    */
   public ContactOperations(Context context, long userId, String accountName,
       boolean isSyncOperation, BatchOperation batchOperation)
+  {
+    this(context, userId, accountName, 0, isSyncOperation, batchOperation);
+  }
+
+  /**
+   * Instantiates a new Contact operations.
+   *
+   * @param context         the context
+   * @param userId          the user id
+   * @param accountName     the account name
+   * @param fingerprint     the fingerprint of the server contact, 0 for none
+   * @param isSyncOperation the is sync operation
+   * @param batchOperation  the batch operation
+   */
+  public ContactOperations(Context context, long userId, String accountName,
+      long fingerprint, boolean isSyncOperation, BatchOperation batchOperation)
+  {
+    this(context, userId, accountName, fingerprint, null, isSyncOperation,
+        batchOperation);
+  }
+
+  /**
+   * Instantiates a new Contact operations.
+   *
+   * @param context         the context
+   * @param userId          the user id
+   * @param accountName     the account name
+   * @param fingerprint     the fingerprint of the server contact, 0 for none
+   * @param photoHash       the hash of the avatar of the server contact, or null
+   * @param isSyncOperation the is sync operation
+   * @param batchOperation  the batch operation
+   */
+  public ContactOperations(Context context, long userId, String accountName,
+      long fingerprint, String photoHash, boolean isSyncOperation,
+      BatchOperation batchOperation)
   {
     this(context, isSyncOperation, batchOperation);
     mBackReference = mBatchOperation.size();
@@ -142,10 +206,22 @@ public class ContactOperations
     mValues.put(RawContacts.SOURCE_ID, userId);
     mValues.put(RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
     mValues.put(RawContacts.ACCOUNT_NAME, accountName);
+    if (fingerprint != 0) {
+      mValues.put(ProjectforgeSyncAdapterColumns.RAW_FINGERPRINT,
+          Long.toString(fingerprint));
+    }
+    if (photoHash != null) {
+      mValues.put(ProjectforgeSyncAdapterColumns.RAW_PHOTO_HASH, photoHash);
+    }
+    if (mBatchOperation.isAggregationSuspended()) {
+      // Aggregated in one go once the sync is done
+      mValues.put(RawContacts.AGGREGATION_MODE,
+          RawContacts.AGGREGATION_MODE_SUSPENDED);
+    }
     ContentProviderOperation.Builder builder = newInsertCpo(
-        RawContacts.CONTENT_URI, mIsSyncOperation, true).withValues(
-        mValues);
-    mBatchOperation.add(builder.build());
+        RawContacts.CONTENT_URI, mIsSyncOperation, isYieldAllowed())
+        .withValues(mValues);
+    mBatchOperation.add(builder.build(), mValues);
   }
 
   /**
@@ -423,6 +499,64 @@ public class ContactOperations
     return this;
   }
 
+  /**
+   * Updates the fingerprint of the server contact last applied to the raw
+   * contact
+   *
+   * @param fingerprint the fingerprint
+   * @param uri         Uri for the existing raw contact to be updated
+   * @return instance of ContactOperations
+   */
+  public ContactOperations updateFingerprint(long fingerprint, Uri uri)
+  {
+    mValues.clear();
+    mValues.put(ProjectforgeSyncAdapterColumns.RAW_FINGERPRINT,
+        Long.toString(fingerprint));
+    addUpdateOp(uri);
+    return this;
+  }
+
+  /**
+   * Updates the fingerprint of the server contact and the hash of the avatar
+   * last applied to the raw contact, in one operation
+   *
+   * @param fingerprint the fingerprint
+   * @param photoHash   the hash of the avatar written, null if there is none
+   * @param uri         Uri for the existing raw contact to be updated
+   * @return instance of ContactOperations
+   */
+  public ContactOperations updateFingerprint(long fingerprint,
+      String photoHash, Uri uri)
+  {
+    mValues.clear();
+    mValues.put(ProjectforgeSyncAdapterColumns.RAW_FINGERPRINT,
+        Long.toString(fingerprint));
+    mValues.put(ProjectforgeSyncAdapterColumns.RAW_PHOTO_HASH, photoHash);
+    addUpdateOp(uri);
+    return this;
+  }
+
+  /**
+   * Suspends aggregation of the raw contact until
+   * {@link ContactManager#resumeAggregation} runs. A raw contact whose mode
+   * was changed from the default, e.g. by the user, is left alone.
+   *
+   * @param uri Uri for the existing raw contact to be updated
+   * @return instance of ContactOperations
+   */
+  public ContactOperations suspendAggregation(Uri uri)
+  {
+    mValues.clear();
+    mValues.put(RawContacts.AGGREGATION_MODE,
+        RawContacts.AGGREGATION_MODE_SUSPENDED);
+    ContentProviderOperation.Builder builder = newUpdateCpo(uri,
+        mIsSyncOperation, isYieldAllowed()).withValues(mValues)
+        .withSelection(RawContacts.AGGREGATION_MODE + "="
+            + RawContacts.AGGREGATION_MODE_DEFAULT, null);
+    mBatchOperation.add(builder.build(), mValues);
+    return this;
+  }
+
   /**
    * Updates contact's email
    *
@@ -655,6 +789,17 @@ public class ContactOperations
     return this;
   }
 
+  /**
+   * A yield lets the provider commit what came before it, so a batch that
+   * fails later on could not be retried without applying parts of it twice.
+   * The batch is applied in slices short enough to hold the provider without
+   * yielding instead, see {@link BatchOperation}.
+   */
+  private boolean isYieldAllowed()
+  {
+    return false;
+  }
+
   /**
    * Adds an insert operation into the batch
    */
@@ -665,13 +810,15 @@ public class ContactOperations
       mValues.put(Phone.RAW_CONTACT_ID, mRawContactId);
     }
     ContentProviderOperation.Builder builder = newInsertCpo(
-        Data.CONTENT_URI, mIsSyncOperation, mIsYieldAllowed);
+        Data.CONTENT_URI, mIsSyncOperation, isYieldAllowed());
     builder.withValues(mValues);
     if (mIsNewContact) {
       builder.withValueBackReference(Data.RAW_CONTACT_ID, mBackReference);
+      mBatchOperation.add(builder.build(), mValues, Data.RAW_CONTACT_ID,
+          mBackReference);
+    } else {
+      mBatchOperation.add(builder.build(), mValues);
     }
-    mIsYieldAllowed = false;
-    mBatchOperation.add(builder.build());
   }
 
   /**
@@ -680,16 +827,14 @@ public class ContactOperations
   private void addUpdateOp(Uri uri)
   {
     ContentProviderOperation.Builder builder = newUpdateCpo(uri,
-        mIsSyncOperation, mIsYieldAllowed).withValues(mValues);
-    mIsYieldAllowed = false;
-    mBatchOperation.add(builder.build());
+        mIsSyncOperation, isYieldAllowed()).withValues(mValues);
+    mBatchOperation.add(builder.build(), mValues);
   }
 
   private void addDeleteOp(Uri uri)
   {
     ContentProviderOperation.Builder builder = newDeleteCpo(uri,
-        mIsSyncOperation, mIsYieldAllowed);
-    mIsYieldAllowed = false;
+        mIsSyncOperation, isYieldAllowed());
     mBatchOperation.add(builder.build());
   }
 
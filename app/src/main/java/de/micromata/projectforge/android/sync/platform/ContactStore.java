@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+
+/**
+ * The part of the ContactsProvider the sync writes through: the scans of an
+ * account, batch apply and display photo writes. {@link ResolverContactStore}
+ * is the one used on the device; anything else implementing it, like an
+ * in-memory provider, lets the apply path run off the device.
+ * <p>
+ * Queries only cover raw contacts of our account type.
+ */
+public interface ContactStore {
+
+    /**
+     * @param accountName the account
+     * @param projection  RawContacts columns
+     * @return all raw contacts of the account, deleted ones included, or null
+     */
+    Cursor queryRawContacts(String accountName, String[] projection);
+
+    /**
+     * @param accountName the account
+     * @param mimeType    the mimetype of the rows
+     * @param projection  Data columns
+     * @return the Data rows of one mimetype of all raw contacts of the
+     * account, or null
+     */
+    Cursor queryData(String accountName, String mimeType, String[] projection);
+
+    /**
+     * @param rawContactIds the raw contacts, the first count are used
+     * @param count         the number of raw contacts
+     * @param projection    Data columns
+     * @return the Data rows of the raw contacts, ordered by raw contact and
+     * row id, or null
+     */
+    Cursor queryData(long[] rawContactIds, int count, String[] projection);
+
+    /**
+     * Applies operations on the contacts authority, like
+     * {@link android.content.ContentResolver#applyBatch}.
+     */
+    ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException, RemoteException;
+
+    /**
+     * Replaces the display photo of a raw contact.
+     *
+     * @param rawContactId the raw contact
+     * @param photo        the encoded image
+     * @return true if the photo was written
+     */
+    boolean writeDisplayPhoto(long rawContactId, byte[] photo);
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+
+import de.micromata.projectforge.android.sync.Constants;
+
+/**
+ * Removes the Data rows that older versions of the sync piled up: a raw
+ * contact of ours should carry at most one row per mimetype and type, because
+ * that is all {@link ContactManager} ever writes or updates. Further rows of
+ * the same kind are deleted. Raw contacts the user deleted stay until the
+ * deletion reached the server, but their Data rows are orphans that nothing
+ * reads any more, so they are deleted as well.
+ * <p>
+ * The account is walked in raw contact order, one page of Data rows at a
+ * time, for as long as the time budget of a run allows. The position is kept
+ * in the account, so the next run continues where the last one stopped and
+ * starts over once it reached the end.
+ */
+public final class DataCompactor {
+
+    private static final String TAG = "DataCompactor";
+
+    private static final String POSITION_KEY = "de.micromata.projectforge.android.sync.compaction";
+
+    /**
+     * Data rows read per query
+     */
+    static final int PAGE_SIZE = 2000;
+
+    private static final int NO_KEY = -1;
+
+    /**
+     * The column of {@link PageQuery} that tells rows of a mimetype apart
+     * (the type, or the group), NO_KEY where there should only be one row.
+     * Mimetypes not listed here are left alone.
+     */
+    private static final HashMap<String, Integer> KEY_COLUMNS = new HashMap<String, Integer>();
+
+    static {
+        KEY_COLUMNS.put(StructuredName.CONTENT_ITEM_TYPE, NO_KEY);
+        KEY_COLUMNS.put(Phone.CONTENT_ITEM_TYPE, PageQuery.COLUMN_TYPE);
+        KEY_COLUMNS.put(Email.CONTENT_ITEM_TYPE, PageQuery.COLUMN_TYPE);
+        KEY_COLUMNS.put(StructuredPostal.CONTENT_ITEM_TYPE, PageQuery.COLUMN_TYPE);
+        KEY_COLUMNS.put(Organization.CONTENT_ITEM_TYPE, PageQuery.COLUMN_TYPE);
+        KEY_COLUMNS.put(Website.CONTENT_ITEM_TYPE, NO_KEY);
+        KEY_COLUMNS.put(Note.CONTENT_ITEM_TYPE, NO_KEY);
+        KEY_COLUMNS.put(Photo.CONTENT_ITEM_TYPE, NO_KEY);
+        KEY_COLUMNS.put(GroupMembership.CONTENT_ITEM_TYPE, PageQuery.COLUMN_GROUP_ROW_ID);
+        KEY_COLUMNS.put(ProjectforgeSyncAdapterColumns.MIME_PROFILE, NO_KEY);
+    }
+
+    private DataCompactor() {
+    }
+
+    /**
+     * Compacts the next part of the account.
+     *
+     * @param context      the context
+     * @param account      the account to compact
+     * @param budgetMillis how long the run may take, checked between pages
+     * @return the number of rows deleted
+     */
+    public static int run(Context context, Account account,
+                          long budgetMillis) {
+        final long deadline = SystemClock.elapsedRealtime() + budgetMillis;
+        final ContentResolver resolver = context.getContentResolver();
+        final AccountManager accountManager = AccountManager.get(context);
+
+        int deleted = deleteOrphans(resolver, account.name, deadline);
+        long position = parsePosition(accountManager.getUserData(account,
+                POSITION_KEY));
+        while (SystemClock.elapsedRealtime() < deadline) {
+            final Page page = compactPage(resolver, account.name, position);
+            if (page == null) {
+                break;
+            }
+            deleted += page.deleted;
+            position = page.next;
+            if (position == 0) {
+                // Reached the end, the next run starts over
+                break;
+            }
+        }
+        accountManager.setUserData(account, POSITION_KEY,
+                Long.toString(position));
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " rows, continuing after "
+                    + position);
+        }
+        return deleted;
+    }
+
+    /**
+     * What one page left behind
+     */
+    private static final class Page {
+
+        /**
+         * The last raw contact that was completely compacted, 0 at the end
+         */
+        final long next;
+
+        final int deleted;
+
+        Page(long next, int deleted) {
+            this.next = next;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Reads the Data rows of the raw contacts after position and deletes the
+     * extra ones. A raw contact whose rows don't all fit in the page is left
+     * for the next page.
+     *
+     * @return the page, null if it could not be read
+     */
+    private static Page compactPage(ContentResolver resolver,
+                                    String accountName, long position) {
+        final Uri uri = Data.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.LIMIT_PARAM_KEY,
+                String.valueOf(PAGE_SIZE)).build();
+        final Cursor c = resolver.query(uri, PageQuery.PROJECTION,
+                PageQuery.SELECTION, new String[]{accountName,
+                        String.valueOf(position)}, PageQuery.SORT_ORDER);
+        if (c == null) {
+            return null;
+        }
+        final StringBuilder extra = new StringBuilder();
+        int extraCount = 0;
+        long next;
+        try {
+            final boolean lastPage = c.getCount() < PAGE_SIZE;
+            final HashMap<String, Row> kept = new HashMap<String, Row>();
+            long rawContactId = 0;
+            long completed = position;
+            // Rows to delete of the raw contact being read, committed to the
+            // page once all of its rows have been seen
+            final StringBuilder pending = new StringBuilder();
+            int pendingCount = 0;
+            while (c.moveToNext()) {
+                final long id = c.getLong(PageQuery.COLUMN_ID);
+                final long rowRawContactId = c.getLong(
+                        PageQuery.COLUMN_RAW_CONTACT_ID);
+                if (rowRawContactId != rawContactId) {
+                    if (rawContactId != 0) {
+                        completed = rawContactId;
+                        extraCount += append(extra, pending, pendingCount);
+                    }
+                    pending.setLength(0);
+                    pendingCount = 0;
+                    kept.clear();
+                    rawContactId = rowRawContactId;
+                }
+                final String mimeType = c.getString(PageQuery.COLUMN_MIMETYPE);
+                final Integer keyColumn = KEY_COLUMNS.get(mimeType);
+                if (keyColumn == null) {
+                    continue;
+                }
+                final String key = keyColumn == NO_KEY ? mimeType
+                        : mimeType + '/' + c.getString(keyColumn);
+                final Row row = new Row(id,
+                        !c.isNull(PageQuery.COLUMN_PHOTO_FILE_ID));
+                final Row previous = kept.get(key);
+                if (previous == null) {
+                    kept.put(key, row);
+                    continue;
+                }
+                // Of two photo rows, keep the one holding the display photo
+                final boolean replace = row.hasPhotoFile
+                        && !previous.hasPhotoFile;
+                if (replace) {
+                    kept.put(key, row);
+                }
+                if (pendingCount++ > 0) {
+                    pending.append(',');
+                }
+                pending.append(replace ? previous.id : id);
+            }
+            if (lastPage) {
+                extraCount += append(extra, pending, pendingCount);
+                next = 0;
+            } else if (completed == position && rawContactId != 0) {
+                // A single raw contact fills the page; take what we have
+                extraCount += append(extra, pending, pendingCount);
+                next = rawContactId;
+            } else {
+                next = completed;
+            }
+        } finally {
+            c.close();
+        }
+
+        int deleted = 0;
+        if (extraCount > 0) {
+            deleted = resolver.delete(syncAdapterUri(Data.CONTENT_URI),
+                    Data._ID + " IN (" + extra + ")", null);
+        }
+        return new Page(next, deleted);
+    }
+
+    /**
+     * Deletes the Data rows of the raw contacts the user deleted, a page at a
+     * time, for as long as the deadline allows. The raw contacts themselves
+     * are kept for the sync adapter.
+     *
+     * @return the number of rows deleted
+     */
+    private static int deleteOrphans(ContentResolver resolver,
+                                     String accountName, long deadline) {
+        final Uri uri = Data.CONTENT_URI.buildUpon().appendQueryParameter(
+                ContactsContract.LIMIT_PARAM_KEY,
+                String.valueOf(PAGE_SIZE)).build();
+        int deleted = 0;
+        while (SystemClock.elapsedRealtime() < deadline) {
+            final Cursor c = resolver.query(uri, OrphanQuery.PROJECTION,
+                    OrphanQuery.SELECTION, new String[]{accountName}, null);
+            if (c == null) {
+                break;
+            }
+            final StringBuilder ids = new StringBuilder();
+            int count = 0;
+            try {
+                while (c.moveToNext()) {
+                    if (count++ > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(c.getLong(OrphanQuery.COLUMN_ID));
+                }
+            } finally {
+                c.close();
+            }
+            if (count == 0) {
+                break;
+            }
+            deleted += resolver.delete(syncAdapterUri(Data.CONTENT_URI),
+                    Data._ID + " IN (" + ids + ")", null);
+            if (count < PAGE_SIZE) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private static int append(StringBuilder extra, CharSequence ids,
+                              int count) {
+        if (count == 0) {
+            return 0;
+        }
+        if (extra.length() > 0) {
+            extra.append(',');
+        }
+        extra.append(ids);
+        return count;
+    }
+
+    private static final class Row {
+
+        final long id;
+
+        final boolean hasPhotoFile;
+
+        Row(long id, boolean hasPhotoFile) {
+            this.id = id;
+            this.hasPhotoFile = hasPhotoFile;
+        }
+    }
+
+    private static Uri syncAdapterUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(
+                ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+    }
+
+    private static long parsePosition(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Constants for a page of Data rows of one account.
+     */
+    final private static class PageQuery {
+
+        private PageQuery() {
+        }
+
+        public final static String[] PROJECTION = new String[]{Data._ID,
+                Data.RAW_CONTACT_ID, Data.MIMETYPE, GroupMembership.GROUP_ROW_ID,
+                Phone.TYPE, Photo.PHOTO_FILE_ID};
+
+        public final static int COLUMN_ID = 0;
+
+        public final static int COLUMN_RAW_CONTACT_ID = 1;
+
+        public final static int COLUMN_MIMETYPE = 2;
+
+        /**
+         * DATA1, the group of a GroupMembership row
+         */
+        public final static int COLUMN_GROUP_ROW_ID = 3;
+
+        /**
+         * DATA2, the type of a Phone, Email, StructuredPostal or Organization row
+         */
+        public final static int COLUMN_TYPE = 4;
+
+        public final static int COLUMN_PHOTO_FILE_ID = 5;
+
+        public static final String SELECTION = RawContacts.ACCOUNT_TYPE + "='"
+                + Constants.ACCOUNT_TYPE + "' AND " + RawContacts.ACCOUNT_NAME
+                + "=? AND " + RawContacts.DELETED + "=0 AND "
+                + Data.RAW_CONTACT_ID + ">?";
+
+        public static final String SORT_ORDER = Data.RAW_CONTACT_ID + ","
+                + Data._ID;
+    }
+
+    /**
+     * Constants for the Data rows of deleted raw contacts of one account.
+     */
+    final private static class OrphanQuery {
+
+        private OrphanQuery() {
+        }
+
+        public final static String[] PROJECTION = new String[]{Data._ID};
+
+        public final static int COLUMN_ID = 0;
+
+        public static final String SELECTION = RawContacts.ACCOUNT_TYPE + "='"
+                + Constants.ACCOUNT_TYPE + "' AND " + RawContacts.ACCOUNT_NAME
+                + "=? AND " + RawContacts.DELETED + "=1";
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.database.Cursor;
+import android.provider.ContactsContract.Data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.micromata.projectforge.android.sync.util.LongIntMap;
+
+/**
+ * In-memory copy of the Data rows of a chunk of raw contacts, loaded with a
+ * single query instead of one cursor per contact. Rows are grouped per raw
+ * contact and consumed by the diff logic in
+ * {@link ContactManager#updateContact}.
+ * <p>
+ * Photo blobs (DATA15) are deliberately not loaded; the diff only needs to
+ * know that a photo row exists.
+ */
+final class DataSnapshot {
+
+    /**
+     * Number of raw contacts whose Data rows are fetched per query. The ids
+     * are inlined into the selection, so this is not bound by SQLite's
+     * host parameter limit, only by statement size.
+     */
+    static final int CHUNK_SIZE = 200;
+
+    private static final List<Row> NO_ROWS = Collections.emptyList();
+
+    /**
+     * All rows of the chunk, ordered by raw contact id
+     */
+    private final ArrayList<Row> mRows;
+
+    /**
+     * rawContactId to the index of its first row in mRows, -1 if it has none
+     */
+    private final LongIntMap mFirstRow;
+
+    private DataSnapshot(int rowCount, int contactCount) {
+        mRows = new ArrayList<Row>(rowCount);
+        mFirstRow = new LongIntMap(contactCount);
+    }
+
+    /**
+     * Loads the Data rows of the given raw contacts with one query.
+     *
+     * @param store         the contact store to use
+     * @param rawContactIds the raw contacts to load
+     * @param count         number of valid entries in rawContactIds
+     * @return the snapshot
+     */
+    static DataSnapshot load(ContactStore store, long[] rawContactIds,
+                             int count) {
+        if (count == 0) {
+            return new DataSnapshot(0, 0);
+        }
+        final Cursor c = store.queryData(rawContactIds, count,
+                SnapshotQuery.PROJECTION);
+        final DataSnapshot snapshot = new DataSnapshot(
+                c != null ? c.getCount() : 0, count);
+        for (int i = 0; i < count; i++) {
+            snapshot.mFirstRow.put(rawContactIds[i], -1);
+        }
+        if (c == null) {
+            return snapshot;
+        }
+        try {
+            long lastRawContactId = 0;
+            while (c.moveToNext()) {
+                final Row row = new Row(c);
+                if (row.rawContactId != lastRawContactId) {
+                    snapshot.mFirstRow.put(row.rawContactId,
+                            snapshot.mRows.size());
+                    lastRawContactId = row.rawContactId;
+                }
+                snapshot.mRows.add(row);
+            }
+        } finally {
+            c.close();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true if the rows of this raw contact were part of the load
+     */
+    boolean contains(long rawContactId) {
+        return mFirstRow.containsKey(rawContactId);
+    }
+
+    /**
+     * @return the Data rows of the raw contact, empty if it has none
+     */
+    List<Row> rows(long rawContactId) {
+        final int first = mFirstRow.get(rawContactId, -1);
+        if (first < 0) {
+            return NO_ROWS;
+        }
+        int end = first + 1;
+        while (end < mRows.size() && mRows.get(end).rawContactId == rawContactId) {
+            end++;
+        }
+        return mRows.subList(first, end);
+    }
+
+    /**
+     * One Data row. Values are kept as strings, as they come from the
+     * cursor, and indexed by the SnapshotQuery column constants.
+     */
+    static final class Row {
+
+        final long id;
+
+        final long rawContactId;
+
+        final String mimeType;
+
+        private final String[] mValues;
+
+        private Row(Cursor c) {
+            id = c.getLong(SnapshotQuery.COLUMN_ID);
+            rawContactId = c.getLong(SnapshotQuery.COLUMN_RAW_CONTACT_ID);
+            mimeType = c.getString(SnapshotQuery.COLUMN_MIMETYPE);
+            mValues = new String[SnapshotQuery.PROJECTION.length
+                    - SnapshotQuery.COLUMN_DATA1];
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = c.getString(SnapshotQuery.COLUMN_DATA1 + i);
+            }
+        }
+
+        String getString(int column) {
+            return mValues[column - SnapshotQuery.COLUMN_DATA1];
+        }
+
+        int getInt(int column) {
+            final String value = getString(column);
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Constants for the bulk Data query of a chunk of raw contacts
+     */
+    final static class SnapshotQuery {
+
+        private SnapshotQuery() {
+        }
+
+        public static final String[] PROJECTION = new String[]{Data._ID,//
+                Data.RAW_CONTACT_ID,//
+                Data.MIMETYPE,//
+                Data.DATA1,//
+                Data.DATA2,//
+                Data.DATA3,//
+                Data.DATA4,//
+                Data.DATA5,//
+                Data.DATA7,//
+                Data.DATA8,//
+                Data.DATA9,//
+                Data.DATA10,//
+        };
+
+        public static final int COLUMN_ID = 0;
+        public static final int COLUMN_RAW_CONTACT_ID = 1;
+        public static final int COLUMN_MIMETYPE = 2;
+        public static final int COLUMN_DATA1 = 3;
+        public static final int COLUMN_DATA2 = 4;
+        public static final int COLUMN_DATA3 = 5;
+        public static final int COLUMN_DATA4 = 6;
+        public static final int COLUMN_DATA5 = 7;
+        public static final int COLUMN_DATA7 = 8;
+        public static final int COLUMN_DATA8 = 9;
+        public static final int COLUMN_DATA9 = 10;
+        public static final int COLUMN_DATA10 = 11;
+
+        public static final int COLUMN_PHONE_NUMBER = COLUMN_DATA1;
+        public static final int COLUMN_PHONE_TYPE = COLUMN_DATA2;
+
+        public static final int COLUMN_EMAIL_ADDRESS = COLUMN_DATA1;
+        public static final int COLUMN_EMAIL_TYPE = COLUMN_DATA2;
+
+        public static final int COLUMN_ORGANIZATION = COLUMN_DATA1;
+        public static final int COLUMN_ORGANIZATION_TYPE = COLUMN_DATA2;
+        public static final int COLUMN_ORGANIZATION_POSITION = COLUMN_DATA4;
+        public static final int COLUMN_ORGANIZATION_DIVISION = COLUMN_DATA5;
+
+        public static final int COLUMN_WEBSITE = COLUMN_DATA1;
+
+        public static final int COLUMN_NOTE = COLUMN_DATA1;
+
+        public static final int COLUMN_GIVEN_NAME = COLUMN_DATA2;
+        public static final int COLUMN_FAMILY_NAME = COLUMN_DATA3;
+
+        public static final int COLUMN_ADDR_TYPE = COLUMN_DATA2;
+        public static final int COLUMN_ADDR_STREET_HNR = COLUMN_DATA4;
+        public static final int COLUMN_ADDR_CITY = COLUMN_DATA7;
+        public static final int COLUMN_ADDR_STATE = COLUMN_DATA8;
+        public static final int COLUMN_ADDR_ZIPCODE = COLUMN_DATA9;
+        public static final int COLUMN_ADDR_COUNTRY = COLUMN_DATA10;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import de.micromata.projectforge.android.sync.client.AvatarCache;
+import de.micromata.projectforge.android.sync.client.DisplayPhotoLimits;
+
+/**
+ * Writes avatars through the {@link RawContacts.DisplayPhoto} file of a raw
+ * contact instead of as a blob in a Data row. The photo never travels in an
+ * applyBatch transaction, so it can't push a batch over the Binder limit, and
+ * the provider derives the thumbnail itself.
+ * <p>
+ * The avatar hash is recorded in
+ * {@link ProjectforgeSyncAdapterColumns#RAW_PHOTO_HASH} after the photo has
+ * been written, so a failed write is retried by the next sync.
+ */
+final class DisplayPhotoWriter {
+
+    private static final String TAG = "DisplayPhotoWriter";
+
+    private DisplayPhotoWriter() {
+    }
+
+    /**
+     * Scales an avatar for the provider, streams it into the display photo of
+     * the raw contact and records its hash.
+     *
+     * @return true if the photo was written
+     */
+    static boolean write(Context context, ContactStore store,
+                         long rawContactId, String hash, byte[] avatar) {
+        final byte[] photo = AvatarCache.get(context).getProcessed(hash,
+                avatar, DisplayPhotoLimits.getMaxDimension(context));
+        if (!store.writeDisplayPhoto(rawContactId, photo)) {
+            return false;
+        }
+
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(1);
+        operations.add(ContactOperations.newUpdateCpo(
+                ContentUris.withAppendedId(RawContacts.CONTENT_URI,
+                        rawContactId), true, false)
+                .withValue(ProjectforgeSyncAdapterColumns.RAW_PHOTO_HASH, hash)
+                .build());
+        try {
+            store.applyBatch(operations);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Recording photo hash of " + rawContactId + " failed", e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Recording photo hash of " + rawContactId + " failed", e);
+        }
+        return true;
+    }
+}
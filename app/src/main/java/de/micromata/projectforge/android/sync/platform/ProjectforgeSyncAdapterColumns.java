@@ -16,6 +16,7 @@
 package de.micromata.projectforge.android.sync.platform;
 
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
 
 /*
  * The standard columns representing contact's info from social apps.
@@ -36,4 +37,16 @@ public final class ProjectforgeSyncAdapterColumns {
     public static final String DATA_SUMMARY = Data.DATA2;
 
     public static final String DATA_DETAIL = Data.DATA3;
+
+    /**
+     * {@link RawContacts} column holding the fingerprint of the server
+     * contact that was last applied to the raw contact.
+     */
+    public static final String RAW_FINGERPRINT = RawContacts.SYNC1;
+
+    /**
+     * {@link RawContacts} column holding the hash of the avatar, as received
+     * from the server, that was last written to the raw contact.
+     */
+    public static final String RAW_PHOTO_HASH = RawContacts.SYNC2;
 }
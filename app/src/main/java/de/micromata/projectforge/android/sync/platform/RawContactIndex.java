@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import de.micromata.projectforge.android.sync.util.LongIntMap;
+import de.micromata.projectforge.android.sync.util.LongLongMap;
+import de.micromata.projectforge.android.sync.util.LongSet;
+
+/**
+ * Sync-scoped index of the raw contacts of one account, keyed by serverId
+ * (RawContacts.SOURCE_ID). It is filled with a single cursor scan when the sync
+ * starts, so the per-contact lookups inside the sync loop never go through the
+ * ContactsProvider.
+ * <p>
+ * Contacts inserted during the sync are tracked as pending inserts until the
+ * batch holding them has been applied; {@link #resolvePending} then records
+ * the rawContactIds the provider handed out. The index itself is only used
+ * from the sync thread, the writer thread merely produces the results.
+ * <p>
+ * Next to the rawContactId the scan picks up the fingerprint of the server
+ * contact and the hash of the avatar last applied to each raw contact.
+ * <p>
+ * The index also knows which serverIds already carry a
+ * {@link ProjectforgeSyncAdapterColumns#MIME_PROFILE} row, loaded with one
+ * more query, so profile rows can be added without a lookup per contact.
+ */
+final class RawContactIndex {
+
+    private static final String TAG = "RawContactIndex";
+
+    /**
+     * serverId to rawContactId of every raw contact already in the provider
+     */
+    private final LongLongMap mRawContactIds;
+
+    /**
+     * serverId to the fingerprint stored in ProjectforgeSyncAdapterColumns.RAW_FINGERPRINT
+     */
+    private final LongLongMap mFingerprints;
+
+    /**
+     * serverId to the key of the hash stored in ProjectforgeSyncAdapterColumns.RAW_PHOTO_HASH
+     */
+    private final LongLongMap mPhotoHashes;
+
+    /**
+     * serverId to index of the RawContacts insert in the batch being filled
+     */
+    private LongIntMap mPendingInserts = new LongIntMap();
+
+    /**
+     * Pending inserts of the batch being applied by the writer, or null
+     */
+    private LongIntMap mInFlightInserts;
+
+    /**
+     * serverIds that have a profile row, committed or queued
+     */
+    private final LongSet mProfiles;
+
+    private RawContactIndex(int expectedSize) {
+        mRawContactIds = new LongLongMap(expectedSize);
+        mFingerprints = new LongLongMap(expectedSize);
+        mPhotoHashes = new LongLongMap(expectedSize);
+        mProfiles = new LongSet(expectedSize);
+    }
+
+    /**
+     * Builds the index with one query over all raw contacts of the account
+     * and one over their profile rows.
+     *
+     * @param store       the contact store to use
+     * @param accountName the account whose raw contacts are indexed
+     * @return the index
+     */
+    static RawContactIndex load(ContactStore store, String accountName) {
+        final Cursor c = store.queryRawContacts(accountName,
+                IndexQuery.PROJECTION);
+        if (c == null) {
+            return new RawContactIndex(0);
+        }
+        final RawContactIndex index;
+        try {
+            index = new RawContactIndex(c.getCount());
+            while (c.moveToNext()) {
+                final long serverId = parseLong(
+                        c.getString(IndexQuery.COLUMN_SERVER_ID));
+                if (serverId > 0) {
+                    index.mRawContactIds.put(serverId,
+                            c.getLong(IndexQuery.COLUMN_RAW_CONTACT_ID));
+                    final long fingerprint = parseLong(
+                            c.getString(IndexQuery.COLUMN_FINGERPRINT));
+                    if (fingerprint != 0) {
+                        index.mFingerprints.put(serverId, fingerprint);
+                    }
+                    final long photoKey = photoKey(
+                            c.getString(IndexQuery.COLUMN_PHOTO_HASH));
+                    if (photoKey != 0) {
+                        index.mPhotoHashes.put(serverId, photoKey);
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        final Cursor p = store.queryData(accountName,
+                ProjectforgeSyncAdapterColumns.MIME_PROFILE,
+                ProfileIndexQuery.PROJECTION);
+        if (p != null) {
+            try {
+                while (p.moveToNext()) {
+                    index.mProfiles.add(p.getLong(ProfileIndexQuery.COLUMN_PID));
+                }
+            } finally {
+                p.close();
+            }
+        }
+        Log.d(TAG, "Indexed " + index.size() + " raw contacts, "
+                + index.mProfiles.size() + " profiles");
+        return index;
+    }
+
+    /**
+     * Reduces a hex SHA-1 to its first 64 bits, plenty to tell whether the
+     * avatar of one contact changed.
+     *
+     * @return the key, 0 for no or a malformed hash
+     */
+    static long photoKey(String hash) {
+        if (hash == null || hash.length() < 16) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(hash.substring(0, 8), 16) << 32
+                    | Long.parseLong(hash.substring(8, 16), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the number of committed raw contacts in the index
+     */
+    int size() {
+        return mRawContactIds.size();
+    }
+
+    /**
+     * Returns the RawContact id for a serverId, or 0 if the contact isn't
+     * known. Contacts still pending in the current batch are not known yet.
+     */
+    long lookup(long serverId) {
+        return mRawContactIds.get(serverId, 0);
+    }
+
+    /**
+     * @return true if an insert for this serverId sits in a batch that has not
+     * been applied yet
+     */
+    boolean isPending(long serverId) {
+        return mPendingInserts.containsKey(serverId)
+                || (mInFlightInserts != null
+                && mInFlightInserts.containsKey(serverId));
+    }
+
+    /**
+     * Records that the RawContacts insert for serverId was queued at the given
+     * position of the batch being filled.
+     */
+    void addPending(long serverId, int operationIndex) {
+        mPendingInserts.put(serverId, operationIndex);
+    }
+
+    /**
+     * Hands the pending inserts of the batch being filled over to the batch
+     * that is about to be applied; a new batch starts without any.
+     *
+     * @return the pending inserts to pass to {@link #resolvePending}
+     */
+    LongIntMap detachPending() {
+        final LongIntMap pending = mPendingInserts;
+        mInFlightInserts = pending;
+        mPendingInserts = new LongIntMap();
+        return pending;
+    }
+
+    /**
+     * Moves the pending inserts of a batch that was just applied into the
+     * index. Inserts without a result (they failed) are simply forgotten.
+     *
+     * @param pending the inserts returned by {@link #detachPending} for it
+     * @param results the results returned by applyBatch, or null
+     */
+    void resolvePending(LongIntMap pending, ContentProviderResult[] results) {
+        if (results != null) {
+            for (long serverId : pending.keys()) {
+                final int operationIndex = pending.get(serverId, -1);
+                if (operationIndex >= 0 && operationIndex < results.length
+                        && results[operationIndex] != null
+                        && results[operationIndex].uri != null) {
+                    mRawContactIds.put(serverId,
+                            ContentUris.parseId(results[operationIndex].uri));
+                }
+            }
+        }
+        if (mInFlightInserts == pending) {
+            mInFlightInserts = null;
+        }
+    }
+
+    /**
+     * Drops a contact that was deleted during the sync.
+     */
+    void remove(long serverId) {
+        mRawContactIds.remove(serverId);
+        mFingerprints.remove(serverId);
+        mPhotoHashes.remove(serverId);
+        mProfiles.remove(serverId);
+    }
+
+    /**
+     * Forgets what was queued for a contact whose operations failed, so it is
+     * not taken as applied if it comes again.
+     */
+    void invalidate(long serverId) {
+        mFingerprints.remove(serverId);
+        mPhotoHashes.remove(serverId);
+    }
+
+    /**
+     * @return true if the raw contact of serverId was last written from a
+     * server contact with exactly this fingerprint
+     */
+    boolean isUnchanged(long serverId, long fingerprint) {
+        return fingerprint != 0
+                && mFingerprints.get(serverId, 0) == fingerprint;
+    }
+
+    /**
+     * Records the fingerprint queued for a contact, so a repeat within the
+     * same sync is recognized as well.
+     */
+    void putFingerprint(long serverId, long fingerprint) {
+        mFingerprints.put(serverId, fingerprint);
+    }
+
+    /**
+     * @return true if the avatar with this hash is the one last written to
+     * the raw contact of serverId, or if both have none
+     */
+    boolean isPhotoUnchanged(long serverId, String photoHash) {
+        return mPhotoHashes.get(serverId, 0) == photoKey(photoHash);
+    }
+
+    /**
+     * Records the avatar hash queued for a contact.
+     */
+    void putPhotoHash(long serverId, String photoHash) {
+        final long photoKey = photoKey(photoHash);
+        if (photoKey != 0) {
+            mPhotoHashes.put(serverId, photoKey);
+        } else {
+            mPhotoHashes.remove(serverId);
+        }
+    }
+
+    /**
+     * @return true if the contact already has a profile row
+     */
+    boolean hasProfile(long serverId) {
+        return mProfiles.contains(serverId);
+    }
+
+    /**
+     * Records that a profile row was queued for the contact.
+     */
+    void addProfile(long serverId) {
+        mProfiles.add(serverId);
+    }
+
+    /**
+     * Constants for the raw contact scan of one account.
+     */
+    final private static class IndexQuery {
+
+        private IndexQuery() {
+        }
+
+        public final static String[] PROJECTION = new String[]{
+                RawContacts._ID, RawContacts.SOURCE_ID,
+                ProjectforgeSyncAdapterColumns.RAW_FINGERPRINT,
+                ProjectforgeSyncAdapterColumns.RAW_PHOTO_HASH};
+
+        public final static int COLUMN_RAW_CONTACT_ID = 0;
+
+        public final static int COLUMN_SERVER_ID = 1;
+
+        public final static int COLUMN_FINGERPRINT = 2;
+
+        public final static int COLUMN_PHOTO_HASH = 3;
+    }
+
+    /**
+     * Constants for the profile row scan of one account.
+     */
+    final private static class ProfileIndexQuery {
+
+        private ProfileIndexQuery() {
+        }
+
+        public final static String[] PROJECTION = new String[]{
+                ProjectforgeSyncAdapterColumns.DATA_PID};
+
+        public final static int COLUMN_PID = 0;
+    }
+}
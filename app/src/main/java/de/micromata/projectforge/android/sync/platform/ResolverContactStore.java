@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import de.micromata.projectforge.android.sync.Constants;
+
+/**
+ * {@link ContactStore} backed by the ContactsProvider.
+ */
+public final class ResolverContactStore implements ContactStore {
+
+    private static final String TAG = "ResolverContactStore";
+
+    private static final String ACCOUNT_SELECTION = RawContacts.ACCOUNT_TYPE
+            + "='" + Constants.ACCOUNT_TYPE + "' AND "
+            + RawContacts.ACCOUNT_NAME + "=?";
+
+    private static final String MIMETYPE_SELECTION = Data.MIMETYPE + "=? AND "
+            + ACCOUNT_SELECTION;
+
+    private static final String RAW_CONTACTS_SELECTION_PREFIX =
+            Data.RAW_CONTACT_ID + " IN (";
+
+    private static final String DATA_SORT_ORDER = Data.RAW_CONTACT_ID + ","
+            + Data._ID;
+
+    private final ContentResolver mResolver;
+
+    public ResolverContactStore(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public Cursor queryRawContacts(String accountName, String[] projection) {
+        return mResolver.query(RawContacts.CONTENT_URI, projection,
+                ACCOUNT_SELECTION, new String[]{accountName}, null);
+    }
+
+    @Override
+    public Cursor queryData(String accountName, String mimeType,
+                            String[] projection) {
+        return mResolver.query(Data.CONTENT_URI, projection,
+                MIMETYPE_SELECTION, new String[]{mimeType, accountName}, null);
+    }
+
+    @Override
+    public Cursor queryData(long[] rawContactIds, int count,
+                            String[] projection) {
+        final StringBuilder selection = new StringBuilder(
+                RAW_CONTACTS_SELECTION_PREFIX);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(rawContactIds[i]);
+        }
+        selection.append(')');
+        return mResolver.query(Data.CONTENT_URI, projection,
+                selection.toString(), null, DATA_SORT_ORDER);
+    }
+
+    @Override
+    public ContentProviderResult[] applyBatch(
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException, RemoteException {
+        return mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+    }
+
+    @Override
+    public boolean writeDisplayPhoto(long rawContactId, byte[] photo) {
+        final Uri photoUri = Uri.withAppendedPath(ContentUris.withAppendedId(
+                RawContacts.CONTENT_URI, rawContactId),
+                RawContacts.DisplayPhoto.CONTENT_DIRECTORY);
+        AssetFileDescriptor fd = null;
+        OutputStream os = null;
+        try {
+            fd = mResolver.openAssetFileDescriptor(photoUri, "rw");
+            if (fd == null) {
+                return false;
+            }
+            os = fd.createOutputStream();
+            os.write(photo);
+            os.close();
+            os = null;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Writing photo of " + rawContactId + " failed", e);
+            return false;
+        } finally {
+            close(os);
+            close(fd);
+        }
+    }
+
+    private static void close(OutputStream os) {
+        if (os != null) {
+            try {
+                os.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void close(AssetFileDescriptor fd) {
+        if (fd != null) {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
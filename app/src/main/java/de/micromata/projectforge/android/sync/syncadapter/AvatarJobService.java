@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.syncadapter;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import de.micromata.projectforge.android.sync.platform.AvatarQueue;
+
+/**
+ * The avatar phase of the sync. Once the text phase has made the directory usable, this job works
+ * through the {@link AvatarQueue} while the device is idle, one photo at a time with a pause in
+ * between, so it never competes with the user for CPU or the ContactsProvider.
+ * <p>
+ * When the system stops the job, the photo being written is finished and the job asks to be
+ * rescheduled; whatever is left stays in the queue.
+ */
+public class AvatarJobService extends JobService
+{
+
+  private static final String TAG = "AvatarJobService";
+
+  private static final int JOB_ID = 1;
+
+  /**
+   * Pause between two photos
+   */
+  private static final long THROTTLE_MILLIS = 250;
+
+  private volatile Thread mWorker;
+
+  private volatile boolean mStopped;
+
+  /**
+   * Schedules the avatar phase, unless it is already scheduled or nothing is queued.
+   */
+  public static void schedule(Context context)
+  {
+    if (AvatarQueue.get(context).isEmpty()) {
+      return;
+    }
+    final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    if (scheduler == null) {
+      return;
+    }
+    for (JobInfo job : scheduler.getAllPendingJobs()) {
+      if (job.getId() == JOB_ID) {
+        return;
+      }
+    }
+    // The images are already on the device, so the job needs no network
+    scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context, AvatarJobService.class))
+        .setRequiresDeviceIdle(true)
+        .setPersisted(true)
+        .build());
+  }
+
+  @Override
+  public boolean onStartJob(final JobParameters params)
+  {
+    mStopped = false;
+    mWorker = new Thread("AvatarWriter")
+    {
+      @Override
+      public void run()
+      {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        final AvatarQueue queue = AvatarQueue.get(AvatarJobService.this);
+        Log.d(TAG, "Writing " + queue.size() + " avatars");
+        try {
+          while (!mStopped && queue.writeNext(AvatarJobService.this)) {
+            Thread.sleep(THROTTLE_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          // stopped
+        }
+        if (!mStopped) {
+          // What is left failed this time and is retried with the job's backoff
+          jobFinished(params, !queue.isEmpty());
+        }
+      }
+    };
+    mWorker.start();
+    return true;
+  }
+
+  @Override
+  public boolean onStopJob(JobParameters params)
+  {
+    mStopped = true;
+    final Thread worker = mWorker;
+    if (worker != null) {
+      worker.interrupt();
+    }
+    Log.d(TAG, "Stopped, " + AvatarQueue.get(this).size() + " avatars left");
+    return !AvatarQueue.get(this).isEmpty();
+  }
+}
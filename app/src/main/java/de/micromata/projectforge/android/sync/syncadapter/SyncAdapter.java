@@ -24,20 +24,18 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
-import android.text.TextUtils;
 import android.util.Log;
 
-import org.json.JSONException;
-
 import java.io.IOException;
-import java.util.List;
 
 import de.micromata.projectforge.android.sync.Constants;
 import de.micromata.projectforge.android.sync.authenticator.AuthenticationException;
+import de.micromata.projectforge.android.sync.client.ContactStream;
 import de.micromata.projectforge.android.sync.client.NetworkUtilities;
 import de.micromata.projectforge.android.sync.client.ParseException;
-import de.micromata.projectforge.android.sync.client.RawContact;
+import de.micromata.projectforge.android.sync.client.SyncWatermark;
 import de.micromata.projectforge.android.sync.platform.ContactManager;
+import de.micromata.projectforge.android.sync.platform.DataCompactor;
 
 /**
  * SyncAdapter implementation for syncing sample SyncAdapter contacts to the
@@ -53,12 +51,24 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
 
   private static final String SYNC_MARKER_KEY = "de.micromata.projectforge.android.sync.marker";
 
+  private static final String SYNC_MARKER_SEEN_KEY = "de.micromata.projectforge.android.sync.marker.seen";
+
   private static final boolean NOTIFY_AUTH_FAILURE = true;
 
+  /**
+   * How long each sync may spend removing duplicate Data rows
+   */
+  private static final long COMPACTION_BUDGET_MILLIS = 500;
+
   private final AccountManager mAccountManager;
 
   private final Context mContext;
 
+  /**
+   * The server response being applied by the running sync, if any
+   */
+  private volatile ContactStream mContactStream;
+
   public SyncAdapter(Context context, boolean autoInitialize)
   {
     super(context, autoInitialize);
@@ -67,7 +77,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
   }
 
   @Override
-  public void onPerformSync(Account account, Bundle extras, String authority,
+  public void onPerformSync(final Account account, Bundle extras, String authority,
       ContentProviderClient provider, SyncResult syncResult)
   {
 
@@ -76,20 +86,31 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
       // handing
       // This value to the server, we can just get the contacts that have
       // been updated on the server-side since our last sync-up
-      long lastSyncMarker = getServerSyncMarker(account);
+      final SyncWatermark watermark = getServerSyncMarker(account);
+      // Persisted after every committed batch, so a sync that is killed
+      // resumes from there
+      watermark.setCheckpointListener(new SyncWatermark.CheckpointListener()
+      {
+        @Override
+        public void onCheckpoint(String timestamp, String seenIds)
+        {
+          mAccountManager.setUserData(account, SYNC_MARKER_KEY, timestamp);
+          mAccountManager.setUserData(account, SYNC_MARKER_SEEN_KEY, seenIds);
+        }
+      });
 
       // By default, contacts from a 3rd party provider are hidden in the
       // contacts
       // list. So let's set the flag that causes them to be visible, so
       // that users
       // can actually see these contacts.
-      if (lastSyncMarker == 0) {
+      if (watermark.isInitial()) {
         ContactManager.setAccountContactsVisibility(getContext(),
             account, true);
       }
 
 
-      List<RawContact> updatedContacts;
+      ContactStream updatedContacts;
 
       // Use the account manager to request the AuthToken we'll need
       // to talk to our sample server. If we don't have an AuthToken
@@ -111,13 +132,14 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
       // Find the local 'dirty' contacts that we need to tell the server
       // about...
       // Find the local users that need to be sync'd to the server...
-      //Map<Long, RawContact> dirtyContacts = ContactManager.getDirtyContacts(mContext, account);
+      //LongObjectMap<RawContact> dirtyContacts = ContactManager.getDirtyContacts(mContext, account);
 
       // Send the dirty contacts to the server, and retrieve the
-      // server-side changes
+      // server-side changes. They are parsed on a background thread
+      // while we apply them.
       try {
-        updatedContacts = NetworkUtilities.syncContacts(mContext,
-            account, authtoken, lastSyncMarker);
+        updatedContacts = NetworkUtilities.openContactStream(mContext,
+            account, authtoken, watermark);
       } catch (AuthenticationException e) {
         AccountManager.get(mContext).invalidateAuthToken(account.type,
             authtoken);
@@ -126,11 +148,19 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
 
       // Update the local contacts database with the changes.
       // updateContacts()
-      // returns a syncState value that indicates the high-water-mark for
-      // the changes we received.
+      // advances the watermark to the high-water-mark of the changes
+      // we received.
       Log.d(TAG, "Calling contactManager's sync contacts");
-      long newSyncState = ContactManager.updateContacts(mContext,
-          account.name, updatedContacts, groupId, lastSyncMarker);
+      mContactStream = updatedContacts;
+      try {
+        ContactManager.updateContacts(mContext, account.name,
+            updatedContacts, groupId, watermark);
+        // A response that broke off must not move the marker
+        updatedContacts.checkFailure();
+      } finally {
+        mContactStream = null;
+        updatedContacts.cancel();
+      }
 
       // This is a demo of how you can update IM-style status messages
       // for contacts on the client. This probably won't apply to
@@ -142,7 +172,13 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
       // Save off the new sync marker. On our next sync, we only want to
       // receive
       // contacts that have changed since this sync...
-      setServerSyncMarker(account, newSyncState);
+      setServerSyncMarker(account, watermark);
+
+      // The directory is usable now; avatars follow in the background
+      AvatarJobService.schedule(mContext);
+
+      // Clean up a little after ourselves on every sync
+      DataCompactor.run(mContext, account, COMPACTION_BUDGET_MILLIS);
 
       //if (dirtyContacts.size() > 0) {
       //	ContactManager.clearSyncFlags(mContext, dirtyContacts);
@@ -162,38 +198,46 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter
     } catch (final ParseException e) {
       Log.e(TAG, "ParseException", e);
       syncResult.stats.numParseExceptions++;
-    } catch (final JSONException e) {
-      Log.e(TAG, "JSONException", e);
-      syncResult.stats.numParseExceptions++;
+    } catch (final InterruptedException e) {
+      Log.i(TAG, "Sync cancelled");
     }
   }
 
+  @Override
+  public void onSyncCanceled()
+  {
+    final ContactStream stream = mContactStream;
+    if (stream != null) {
+      stream.cancel();
+    }
+    super.onSyncCanceled();
+  }
+
   /**
    * This helper function fetches the last known high-water-mark we received
-   * from the server - or 0 if we've never synced.
+   * from the server - or an initial one if we've never synced.
    *
    * @param account the account we're syncing
    * @return the change high-water-mark
    */
-  private long getServerSyncMarker(Account account)
+  private SyncWatermark getServerSyncMarker(Account account)
   {
-    String markerString = mAccountManager.getUserData(account,
-        SYNC_MARKER_KEY);
-    if (!TextUtils.isEmpty(markerString)) {
-      return Long.parseLong(markerString);
-    }
-    return 0;
+    return SyncWatermark.decode(
+        mAccountManager.getUserData(account, SYNC_MARKER_KEY),
+        mAccountManager.getUserData(account, SYNC_MARKER_SEEN_KEY));
   }
 
   /**
    * Save off the high-water-mark we receive back from the server.
    *
    * @param account The account we're syncing
-   * @param marker The high-water-mark we want to save.
+   * @param watermark The high-water-mark we want to save.
    */
-  private void setServerSyncMarker(Account account, long marker)
+  private void setServerSyncMarker(Account account, SyncWatermark watermark)
   {
     mAccountManager.setUserData(account, SYNC_MARKER_KEY,
-        Long.toString(marker));
+        watermark.encodeTimestamp());
+    mAccountManager.setUserData(account, SYNC_MARKER_SEEN_KEY,
+        watermark.encodeSeenIds());
   }
 }
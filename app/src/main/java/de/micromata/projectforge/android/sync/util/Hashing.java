@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.util;
+
+/**
+ * Shared hashing and sizing helpers for the primitive collections.
+ */
+final class Hashing
+{
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private Hashing()
+  {
+  }
+
+  /**
+   * Spreads the bits of a long key so that sequential ids do not cluster.
+   */
+  static int mix(long key)
+  {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the power-of-two table size able to hold expectedSize entries
+   */
+  static int tableSize(int expectedSize, int minCapacity)
+  {
+    int capacity = minCapacity;
+    while (capacity < MAX_CAPACITY && maxFill(capacity) < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  static int maxFill(int capacity)
+  {
+    return Math.min(capacity - 1, (int) (capacity * LOAD_FACTOR));
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive long values.
+ * Used for sync bookkeeping (serverId to rawContactId and the like), where a
+ * HashMap&lt;Long, Long&gt; would box every key and value.
+ */
+public class LongLongMap
+{
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] mKeys;
+
+  private long[] mValues;
+
+  private int mMask;
+
+  private int mSize;
+
+  /**
+   * Key 0 marks a free slot, so a mapping for 0 is kept aside.
+   */
+  private boolean mHasZeroKey;
+
+  private long mZeroValue;
+
+  public LongLongMap()
+  {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize the number of mappings the map should hold without growing
+   */
+  public LongLongMap(int expectedSize)
+  {
+    allocate(Hashing.tableSize(expectedSize, MIN_CAPACITY));
+  }
+
+  public int size()
+  {
+    return mSize;
+  }
+
+  public boolean isEmpty()
+  {
+    return mSize == 0;
+  }
+
+  public boolean containsKey(long key)
+  {
+    if (key == 0) {
+      return mHasZeroKey;
+    }
+    return mKeys[indexOf(key)] == key;
+  }
+
+  /**
+   * @param key          the key to look up
+   * @param defaultValue returned if there is no mapping for key
+   * @return the mapped value or defaultValue
+   */
+  public long get(long key, long defaultValue)
+  {
+    if (key == 0) {
+      return mHasZeroKey ? mZeroValue : defaultValue;
+    }
+    final int index = indexOf(key);
+    return mKeys[index] == key ? mValues[index] : defaultValue;
+  }
+
+  public void put(long key, long value)
+  {
+    if (key == 0) {
+      if (!mHasZeroKey) {
+        mHasZeroKey = true;
+        mSize++;
+      }
+      mZeroValue = value;
+      return;
+    }
+    final int index = indexOf(key);
+    if (mKeys[index] == key) {
+      mValues[index] = value;
+      return;
+    }
+    mKeys[index] = key;
+    mValues[index] = value;
+    if (++mSize > Hashing.maxFill(mKeys.length)) {
+      allocate(mKeys.length << 1);
+    }
+  }
+
+  /**
+   * @return true if a mapping was removed
+   */
+  public boolean remove(long key)
+  {
+    if (key == 0) {
+      if (!mHasZeroKey) {
+        return false;
+      }
+      mHasZeroKey = false;
+      mSize--;
+      return true;
+    }
+    int index = indexOf(key);
+    if (mKeys[index] != key) {
+      return false;
+    }
+    mSize--;
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    int next = (index + 1) & mMask;
+    while (mKeys[next] != 0) {
+      final int home = Hashing.mix(mKeys[next]) & mMask;
+      if (((next - home) & mMask) >= ((next - index) & mMask)) {
+        mKeys[index] = mKeys[next];
+        mValues[index] = mValues[next];
+        index = next;
+      }
+      next = (next + 1) & mMask;
+    }
+    mKeys[index] = 0;
+    return true;
+  }
+
+  /**
+   * @return a freshly allocated array with all keys, in no particular order
+   */
+  public long[] keys()
+  {
+    final long[] keys = new long[mSize];
+    int n = 0;
+    if (mHasZeroKey) {
+      keys[n++] = 0;
+    }
+    for (long key : mKeys) {
+      if (key != 0) {
+        keys[n++] = key;
+      }
+    }
+    return keys;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(mKeys, 0);
+    mHasZeroKey = false;
+    mSize = 0;
+  }
+
+  /**
+   * Returns the slot holding key, or the free slot where it would be inserted.
+   */
+  private int indexOf(long key)
+  {
+    int index = Hashing.mix(key) & mMask;
+    long k;
+    while ((k = mKeys[index]) != 0 && k != key) {
+      index = (index + 1) & mMask;
+    }
+    return index;
+  }
+
+  private void allocate(int capacity)
+  {
+    final long[] oldKeys = mKeys;
+    final long[] oldValues = mValues;
+    mKeys = new long[capacity];
+    mValues = new long[capacity];
+    mMask = capacity - 1;
+    if (oldKeys == null) {
+      return;
+    }
+    for (int i = 0; i < oldKeys.length; i++) {
+      final long key = oldKeys[i];
+      if (key != 0) {
+        final int index = indexOf(key);
+        mKeys[index] = key;
+        mValues[index] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of primitive longs, the boxing-free counterpart of
+ * HashSet&lt;Long&gt; for sets of serverIds.
+ */
+public class LongSet
+{
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] mKeys;
+
+  private int mMask;
+
+  private int mSize;
+
+  /**
+   * Element 0 marks a free slot, so it is tracked separately.
+   */
+  private boolean mHasZeroKey;
+
+  public LongSet()
+  {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize the number of elements the set should hold without growing
+   */
+  public LongSet(int expectedSize)
+  {
+    allocate(Hashing.tableSize(expectedSize, MIN_CAPACITY));
+  }
+
+  public int size()
+  {
+    return mSize;
+  }
+
+  public boolean isEmpty()
+  {
+    return mSize == 0;
+  }
+
+  public boolean contains(long key)
+  {
+    if (key == 0) {
+      return mHasZeroKey;
+    }
+    return mKeys[indexOf(key)] == key;
+  }
+
+  /**
+   * @return true if the element was not yet part of the set
+   */
+  public boolean add(long key)
+  {
+    if (key == 0) {
+      if (mHasZeroKey) {
+        return false;
+      }
+      mHasZeroKey = true;
+      mSize++;
+      return true;
+    }
+    final int index = indexOf(key);
+    if (mKeys[index] == key) {
+      return false;
+    }
+    mKeys[index] = key;
+    if (++mSize > Hashing.maxFill(mKeys.length)) {
+      allocate(mKeys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the element was removed
+   */
+  public boolean remove(long key)
+  {
+    if (key == 0) {
+      if (!mHasZeroKey) {
+        return false;
+      }
+      mHasZeroKey = false;
+      mSize--;
+      return true;
+    }
+    int index = indexOf(key);
+    if (mKeys[index] != key) {
+      return false;
+    }
+    mSize--;
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    int next = (index + 1) & mMask;
+    while (mKeys[next] != 0) {
+      final int home = Hashing.mix(mKeys[next]) & mMask;
+      if (((next - home) & mMask) >= ((next - index) & mMask)) {
+        mKeys[index] = mKeys[next];
+        index = next;
+      }
+      next = (next + 1) & mMask;
+    }
+    mKeys[index] = 0;
+    return true;
+  }
+
+  /**
+   * @return a freshly allocated array with all elements, in no particular order
+   */
+  public long[] toArray()
+  {
+    final long[] keys = new long[mSize];
+    int n = 0;
+    if (mHasZeroKey) {
+      keys[n++] = 0;
+    }
+    for (long key : mKeys) {
+      if (key != 0) {
+        keys[n++] = key;
+      }
+    }
+    return keys;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(mKeys, 0);
+    mHasZeroKey = false;
+    mSize = 0;
+  }
+
+  /**
+   * Returns the slot holding key, or the free slot where it would be inserted.
+   */
+  private int indexOf(long key)
+  {
+    int index = Hashing.mix(key) & mMask;
+    long k;
+    while ((k = mKeys[index]) != 0 && k != key) {
+      index = (index + 1) & mMask;
+    }
+    return index;
+  }
+
+  private void allocate(int capacity)
+  {
+    final long[] oldKeys = mKeys;
+    mKeys = new long[capacity];
+    mMask = capacity - 1;
+    if (oldKeys == null) {
+      return;
+    }
+    for (long key : oldKeys) {
+      if (key != 0) {
+        mKeys[indexOf(key)] = key;
+      }
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Writes synthetic ProjectForge address lists in the shape {@link Parser} reads: every {@link
+ * Parser.Field}, lastUpdate as millis or as <code>yyyy-MM-dd HH:mm:ss.SSS</code>, inline base64
+ * images and deleted tombstones.
+ * <p>
+ * Every contact is derived from the seed, its id and the generation it last changed in, so the
+ * output is reproducible and is written contact by contact, whatever the size. Generation 0 is the
+ * initial directory; from one generation to the next, the churn share of the contacts changes, and
+ * some of the changed ones are deleted. {@link #writeChanges} writes what an incremental sync
+ * receives between two generations.
+ * <p>
+ * Contacts are written in lastUpdate order, as the server sends them.
+ */
+public class AddressDatasetGenerator
+{
+  /**
+   * lastUpdate of the first contact of generation 0
+   */
+  public static final long EPOCH = 1500000000000L;
+
+  /**
+   * lastUpdate distance of two contacts within a generation
+   */
+  private static final long STEP_MILLIS = 1000;
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final String[] FIRST_NAMES = { "Anna", "Ben", "Clara", "David", "Emma", "Felix", "Greta", "Hannes",
+      "Ida", "Jonas", "Klara", "Lukas", "Mia", "Noah", "Olga", "Paul", "Rosa", "Simon", "Tara", "Ulrich" };
+
+  private static final String[] LAST_NAMES = { "Müller", "Schmidt", "Schneider", "Fischer", "Weber", "Meyer",
+      "Wagner", "Becker", "Schulz", "Hoffmann", "Schäfer", "Koch", "Bauer", "Richter", "Klein", "Wolf" };
+
+  private static final String[] CITIES = { "Kassel", "Berlin", "Hamburg", "München", "Köln", "Frankfurt am Main",
+      "Stuttgart", "Düsseldorf", "Leipzig", "Dresden" };
+
+  private static final String[] STATES = { "Hessen", "Berlin", "Hamburg", "Bayern", "Nordrhein-Westfalen",
+      "Baden-Württemberg", "Sachsen" };
+
+  private static final String[] STREETS = { "Hauptstraße", "Bahnhofstraße", "Gartenweg", "Schulstraße",
+      "Lindenallee", "Marktplatz", "Am Park" };
+
+  private static final String[] ORGANIZATIONS = { "Micromata GmbH", "Example AG", "Acme Corp.", "Muster KG",
+      "Beispiel e.V." };
+
+  private final long mSeed;
+
+  private final int mSize;
+
+  private double mFillRate = 0.6;
+
+  private double mAvatarRatio = 0.2;
+
+  private int mAvatarBytes = 12 * 1024;
+
+  private double mDeletedRatio = 0.02;
+
+  private double mChurn = 0.05;
+
+  private double mDateStringRatio = 0.5;
+
+  /**
+   * @param seed the seed everything is derived from
+   * @param size the number of contacts in generation 0
+   */
+  public AddressDatasetGenerator(long seed, int size)
+  {
+    mSeed = seed;
+    mSize = size;
+  }
+
+  /**
+   * @param rate the share of the optional fields that carry a value, 0.6 by default; the others
+   *             are null
+   */
+  public AddressDatasetGenerator setFillRate(double rate)
+  {
+    mFillRate = rate;
+    return this;
+  }
+
+  /**
+   * @param ratio the share of contacts with an image, 0.2 by default
+   */
+  public AddressDatasetGenerator setAvatarRatio(double ratio)
+  {
+    mAvatarRatio = ratio;
+    return this;
+  }
+
+  /**
+   * @param bytes the size of an image before base64, 12 KB by default
+   */
+  public AddressDatasetGenerator setAvatarBytes(int bytes)
+  {
+    mAvatarBytes = bytes;
+    return this;
+  }
+
+  /**
+   * @param ratio the share of tombstones in generation 0, and of the contacts changed in a later
+   *              generation that are deleted, 0.02 by default
+   */
+  public AddressDatasetGenerator setDeletedRatio(double ratio)
+  {
+    mDeletedRatio = ratio;
+    return this;
+  }
+
+  /**
+   * @param churn the share of contacts that change from one generation to the next, 0.05 by
+   *              default
+   */
+  public AddressDatasetGenerator setChurn(double churn)
+  {
+    mChurn = churn;
+    return this;
+  }
+
+  /**
+   * @param ratio the share of contacts whose lastUpdate is a date string rather than millis, 0.5 by
+   *              default
+   */
+  public AddressDatasetGenerator setDateStringRatio(double ratio)
+  {
+    mDateStringRatio = ratio;
+    return this;
+  }
+
+  /**
+   * Writes the whole directory as of a generation, tombstones included.
+   *
+   * @return the number of contacts written
+   */
+  public int write(OutputStream out, int generation) throws IOException
+  {
+    return writeChanges(out, -1, generation);
+  }
+
+  /**
+   * Writes the contacts that changed after generation since, as of generation; what a sync that
+   * last ran at since receives.
+   *
+   * @return the number of contacts written
+   */
+  public int writeChanges(OutputStream out, int since, int generation) throws IOException
+  {
+    final JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+    final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    final State state = new State();
+    int count = 0;
+    json.writeStartArray();
+    // One pass per generation keeps the output in lastUpdate order without sorting it
+    for (int pass = Math.max(0, since + 1); pass <= generation; pass++) {
+      for (long id = 1; id <= mSize; id++) {
+        state(id, generation, state);
+        if (state.changed == pass) {
+          writeContact(json, id, state, dateFormat);
+          count++;
+        }
+      }
+    }
+    json.writeEndArray();
+    json.flush();
+    return count;
+  }
+
+  /**
+   * Writes the whole directory as of a generation to a file.
+   *
+   * @return the number of contacts written
+   */
+  public int writeTo(File file, int generation) throws IOException
+  {
+    final OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    try {
+      return write(out, generation);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return the lastUpdate of a contact that last changed in a generation
+   */
+  public long lastUpdate(long id, int generation)
+  {
+    return EPOCH + (generation * (long) (mSize + 1) + id) * STEP_MILLIS;
+  }
+
+  /**
+   * Where a contact stands in a generation
+   */
+  private static final class State
+  {
+    /**
+     * The generation the contact last changed in
+     */
+    int changed;
+
+    boolean deleted;
+  }
+
+  private void state(long id, int generation, State state)
+  {
+    state.changed = 0;
+    state.deleted = random(id, 0, 1).nextDouble() < mDeletedRatio;
+    for (int g = 1; g <= generation && !state.deleted; g++) {
+      final Random random = random(id, g, 2);
+      if (random.nextDouble() < mChurn) {
+        state.changed = g;
+        state.deleted = random.nextDouble() < mDeletedRatio;
+      }
+    }
+  }
+
+  /**
+   * @return a generator for one purpose of one contact in one generation
+   */
+  private Random random(long id, int generation, int purpose)
+  {
+    long h = mSeed;
+    h = h * 0x9E3779B97F4A7C15L + id;
+    h = h * 0x9E3779B97F4A7C15L + generation;
+    h = h * 0x9E3779B97F4A7C15L + purpose;
+    return new Random(h ^ (h >>> 31));
+  }
+
+  private void writeContact(JsonGenerator json, long id, State state, SimpleDateFormat dateFormat) throws IOException
+  {
+    // The content only depends on the generation it was written in
+    final Random random = random(id, state.changed, 3);
+    final String firstName = pick(random, FIRST_NAMES);
+    final String lastName = pick(random, LAST_NAMES);
+    final String city = pick(random, CITIES);
+    json.writeStartObject();
+    for (Parser.Field field : Parser.Field.values()) {
+      final String name = field.jsonName;
+      switch (field) {
+        case ID:
+          json.writeNumberField(name, id);
+          break;
+        case DELETED:
+          json.writeBooleanField(name, state.deleted);
+          break;
+        case LAST_UPDATE:
+          final long lastUpdate = lastUpdate(id, state.changed);
+          json.writeStringField(name, random.nextDouble() < mDateStringRatio
+              ? dateFormat.format(new Date(lastUpdate)) : Long.toString(lastUpdate));
+          break;
+        case FIRST_NAME:
+          json.writeStringField(name, firstName);
+          break;
+        case NAME:
+          json.writeStringField(name, lastName);
+          break;
+        case IMAGE:
+          if (!state.deleted && random.nextDouble() < mAvatarRatio) {
+            final byte[] image = new byte[mAvatarBytes];
+            random.nextBytes(image);
+            json.writeBinaryField(name, image);
+          } else {
+            json.writeNullField(name);
+          }
+          break;
+        default:
+          final String value = state.deleted || random.nextDouble() >= mFillRate ? null
+              : value(field, random, id, firstName, lastName, city);
+          if (value != null) {
+            json.writeStringField(name, value);
+          } else {
+            json.writeNullField(name);
+          }
+          break;
+      }
+    }
+    json.writeEndObject();
+  }
+
+  private static String value(Parser.Field field, Random random, long id, String firstName, String lastName,
+      String city)
+  {
+    switch (field) {
+      case CONTACT_STATUS:
+        return "ACTIVE";
+      case ADDRESS_STATUS:
+        return "UPTODATE";
+      case FORM:
+        return random.nextBoolean() ? "MISTER" : "MISS";
+      case PRIVATE_EMAIL:
+        return firstName.toLowerCase(Locale.ROOT) + id + "@mail.example.org";
+      case EMAIL:
+        return firstName.toLowerCase(Locale.ROOT) + "." + lastName.toLowerCase(Locale.ROOT) + id + "@example.com";
+      case PRIVATE_MOBILE_PHONE:
+      case MOBILE_PHONE:
+        return "+49 1" + (50 + random.nextInt(30)) + " " + (1000000 + random.nextInt(9000000));
+      case PRIVATE_PHONE:
+      case BUSINESS_PHONE:
+      case FAX:
+        return "+49 " + (30 + random.nextInt(900)) + " " + (100000 + random.nextInt(900000));
+      case ORGANIZATION:
+        return pick(random, ORGANIZATIONS);
+      case DIVISION:
+        return "Division " + (1 + random.nextInt(12));
+      case POSITION_TEXT:
+        return random.nextBoolean() ? "Developer" : "Project Manager";
+      case WEBSITE:
+        return "https://www.example.com/~" + lastName.toLowerCase(Locale.ROOT) + id;
+      case COMMENT:
+        return "Met at the " + (2000 + random.nextInt(20)) + " conference.\nFollow up.";
+      case ADDRESS_TEXT:
+      case POSTAL_ADDRESS_TEXT:
+      case PRIVATE_ADDRESS_TEXT:
+        return pick(random, STREETS) + " " + (1 + random.nextInt(200));
+      case ZIP_CODE:
+      case POSTAL_ZIP_CODE:
+      case PRIVATE_ZIP_CODE:
+        return Integer.toString(10000 + random.nextInt(90000));
+      case CITY:
+      case POSTAL_CITY:
+      case PRIVATE_CITY:
+        return city;
+      case STATE:
+      case POSTAL_STATE:
+      case PRIVATE_STATE:
+        return pick(random, STATES);
+      case COUNTRY:
+      case POSTAL_COUNTRY:
+      case PRIVATE_COUNTRY:
+        return "Germany";
+      case COMMUNICATION_LANGUAGE:
+        return random.nextBoolean() ? "de" : "en";
+      case PUBLIC_KEY:
+        return "-----BEGIN PGP PUBLIC KEY BLOCK-----\n" + Long.toHexString(random.nextLong())
+            + "\n-----END PGP PUBLIC KEY BLOCK-----";
+      default:
+        return null;
+    }
+  }
+
+  private static String pick(Random random, String[] values)
+  {
+    return values[random.nextInt(values.length)];
+  }
+}
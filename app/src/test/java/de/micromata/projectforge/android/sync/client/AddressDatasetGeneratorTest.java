@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The generated datasets parse, are reproducible and churn as configured.
+ */
+public class AddressDatasetGeneratorTest
+{
+  private static final int CONTACTS = 2000;
+
+  private static byte[] generate(AddressDatasetGenerator generator, int since, int generation) throws IOException
+  {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.writeChanges(out, since, generation);
+    return out.toByteArray();
+  }
+
+  private static List<RawContact> parse(byte[] json)
+  {
+    final ArrayList<RawContact> contacts = new ArrayList<RawContact>();
+    new Parser().parse(contacts, new ByteArrayInputStream(json), null);
+    return contacts;
+  }
+
+  @org.junit.Test
+  public void reproducible() throws Exception
+  {
+    final byte[] a = generate(new AddressDatasetGenerator(7, 100), -1, 2);
+    assertArrayEquals(a, generate(new AddressDatasetGenerator(7, 100), -1, 2));
+    assertFalse(Arrays.equals(a, generate(new AddressDatasetGenerator(8, 100), -1, 2)));
+  }
+
+  @org.junit.Test
+  public void parses() throws Exception
+  {
+    final AddressDatasetGenerator generator = new AddressDatasetGenerator(1, CONTACTS).setAvatarRatio(0.3)
+        .setAvatarBytes(256).setDeletedRatio(0.1);
+    final List<RawContact> contacts = parse(generate(generator, -1, 0));
+    assertEquals(CONTACTS, contacts.size());
+
+    int avatars = 0;
+    int deleted = 0;
+    long previous = 0;
+    for (int i = 0; i < contacts.size(); i++) {
+      final RawContact contact = contacts.get(i);
+      assertEquals(i + 1, contact.getServerContactId());
+      // Millis and date strings both come out as the same lastUpdate
+      assertEquals(generator.lastUpdate(i + 1, 0), contact.getSyncState());
+      assertTrue(contact.getSyncState() > previous);
+      previous = contact.getSyncState();
+      if (contact.getAvatar() != null) {
+        assertEquals(256, contact.getAvatar().length);
+        assertEquals(AvatarCache.hash(contact.getAvatar()), contact.getAvatarHash());
+        avatars++;
+      } else {
+        assertNull(contact.getAvatarHash());
+      }
+      if (contact.isDeleted()) {
+        deleted++;
+      }
+    }
+    assertEquals(0.3 * 0.9, (double) avatars / CONTACTS, 0.05);
+    assertEquals(0.1, (double) deleted / CONTACTS, 0.03);
+  }
+
+  @org.junit.Test
+  public void churn() throws Exception
+  {
+    final AddressDatasetGenerator generator = new AddressDatasetGenerator(3, CONTACTS).setChurn(0.2)
+        .setDeletedRatio(0);
+    final HashMap<Long, Long> initial = new HashMap<Long, Long>();
+    for (RawContact contact : parse(generate(generator, -1, 0))) {
+      initial.put(contact.getServerContactId(), contact.getFingerprint());
+    }
+
+    final List<RawContact> changes = parse(generate(generator, 0, 1));
+    assertEquals(0.2, (double) changes.size() / CONTACTS, 0.03);
+    int different = 0;
+    long previous = 0;
+    for (RawContact contact : changes) {
+      assertTrue(contact.getSyncState() > previous);
+      previous = contact.getSyncState();
+      if (initial.get(contact.getServerContactId()) != contact.getFingerprint()) {
+        different++;
+      }
+    }
+    assertTrue(different > changes.size() * 9 / 10);
+
+    // The full directory of generation 1 holds every contact once, changed ones last
+    final List<RawContact> all = parse(generate(generator, -1, 1));
+    assertEquals(CONTACTS, all.size());
+    assertEquals(changes.get(0).getServerContactId(), all.get(CONTACTS - changes.size()).getServerContactId());
+  }
+
+  /**
+   * Counts the bytes written without keeping them
+   */
+  private static final class CountingOutputStream extends OutputStream
+  {
+    long count;
+
+    @Override
+    public void write(int b)
+    {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      count += len;
+    }
+  }
+
+  @org.junit.Test
+  public void streams() throws Exception
+  {
+    final AddressDatasetGenerator generator = new AddressDatasetGenerator(5, 1000);
+    final CountingOutputStream counter = new CountingOutputStream();
+    assertEquals(1000, generator.write(counter, 1));
+    assertEquals(generate(generator, -1, 1).length, counter.count);
+  }
+
+  /**
+   * A million contacts with images; run with -Pbenchmarks
+   */
+  @org.junit.Test
+  public void streamsLargeDirectories() throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+    final int contacts = 1000000;
+    final CountingOutputStream counter = new CountingOutputStream();
+    assertEquals(contacts, new AddressDatasetGenerator(5, contacts).write(counter, 0));
+    assertTrue(counter.count > contacts * 200L);
+  }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.codehaus.jackson.Base64Variants;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the two ProjectForge REST calls the client makes, {@link
+ * NetworkUtilities#AUTH_URI_PATH} and {@link NetworkUtilities#SYNC_CONTACTS_URI}, serving a
+ * synthetic directory. It is meant as a fixed backend for benchmarks of the client pipeline.
+ * <p>
+ * The directory is generated from the contact ids, so two servers with the same settings serve the
+ * same bytes. Contact n has lastUpdate {@link #EPOCH} + n seconds; {@link #advance()} edits a share
+ * of the directory at a later time, so the next request with modifiedSince picks up just those.
+ * Responses are sorted by lastUpdate like the real server's, streamed, and can be slowed down by a
+ * fixed latency before the headers and a bandwidth limit on the body.
+ */
+public class FakeProjectForgeServer
+{
+  public static final String USERNAME = "sync";
+
+  public static final String PASSWORD = "secret";
+
+  public static final String USER_ID = "42";
+
+  public static final String AUTH_TOKEN = "0123456789abcdef";
+
+  /**
+   * lastUpdate of the first contact of the directory
+   */
+  public static final long EPOCH = 1500000000000L;
+
+  private static final long STEP_MILLIS = 1000;
+
+  private static final int CHUNK_SIZE = 8 * 1024;
+
+  /**
+   * A response is sorted on lastUpdate and the contact index packed into one long
+   */
+  private static final int INDEX_BITS = 20;
+
+  public static final int MAX_SIZE = 1 << INDEX_BITS;
+
+  private final int mSize;
+
+  /**
+   * Per contact, indexed by id - 1: how often it was edited and when last
+   */
+  private final int[] mVersions;
+
+  private final long[] mLastUpdates;
+
+  private long mClock;
+
+  private final Random mRandom = new Random(1);
+
+  private double mAvatarRatio = 0.25;
+
+  private int mAvatarBytes = 16 * 1024;
+
+  private double mChangeRate = 0.01;
+
+  private long mLatencyMillis;
+
+  private long mBytesPerSecond;
+
+  private HttpServer mServer;
+
+  private ExecutorService mExecutor;
+
+  private final AtomicInteger mRequests = new AtomicInteger();
+
+  private final AtomicLong mBytesSent = new AtomicLong();
+
+  private final AtomicInteger mThrottlePauses = new AtomicInteger();
+
+  /**
+   * @param size the number of contacts in the directory
+   */
+  public FakeProjectForgeServer(int size)
+  {
+    if (size <= 0 || size > MAX_SIZE) {
+      throw new IllegalArgumentException("size " + size);
+    }
+    mSize = size;
+    mVersions = new int[size];
+    mLastUpdates = new long[size];
+    for (int i = 0; i < size; i++) {
+      mLastUpdates[i] = EPOCH + i * STEP_MILLIS;
+    }
+    mClock = EPOCH + size * STEP_MILLIS;
+  }
+
+  /**
+   * @param ratio the share of contacts with an avatar, 0.25 by default
+   */
+  public FakeProjectForgeServer setAvatarRatio(double ratio)
+  {
+    mAvatarRatio = ratio;
+    return this;
+  }
+
+  /**
+   * @param bytes the size of an avatar before base64, 16 KB by default
+   */
+  public FakeProjectForgeServer setAvatarBytes(int bytes)
+  {
+    mAvatarBytes = bytes;
+    return this;
+  }
+
+  /**
+   * @param rate the share of contacts {@link #advance()} edits, 0.01 by default
+   */
+  public FakeProjectForgeServer setChangeRate(double rate)
+  {
+    mChangeRate = rate;
+    return this;
+  }
+
+  /**
+   * @param millis how long every request waits before the response headers
+   */
+  public FakeProjectForgeServer setLatencyMillis(long millis)
+  {
+    mLatencyMillis = millis;
+    return this;
+  }
+
+  /**
+   * @param bytesPerSecond the limit for a response body, 0 for none
+   */
+  public FakeProjectForgeServer setBandwidth(long bytesPerSecond)
+  {
+    mBytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /**
+   * Starts listening on a free port of the loopback interface.
+   */
+  public FakeProjectForgeServer start() throws IOException
+  {
+    mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    mServer.createContext(NetworkUtilities.AUTH_URI_PATH, new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        authenticate(exchange);
+      }
+    });
+    mServer.createContext(NetworkUtilities.SYNC_CONTACTS_URI, new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        list(exchange);
+      }
+    });
+    mExecutor = Executors.newCachedThreadPool();
+    mServer.setExecutor(mExecutor);
+    mServer.start();
+    return this;
+  }
+
+  public void stop()
+  {
+    if (mServer != null) {
+      mServer.stop(0);
+      mExecutor.shutdownNow();
+      mServer = null;
+    }
+  }
+
+  /**
+   * @return the url to hand to the client, without a trailing slash
+   */
+  public String getBaseUrl()
+  {
+    return "http://127.0.0.1:" + mServer.getAddress().getPort();
+  }
+
+  public int getSize()
+  {
+    return mSize;
+  }
+
+  /**
+   * Edits the configured share of the directory, at least one contact, all at the same new
+   * lastUpdate.
+   *
+   * @return the number of contacts edited
+   */
+  public synchronized int advance()
+  {
+    mClock += STEP_MILLIS;
+    final int count = Math.max(1, Math.min(mSize, (int) Math.round(mSize * mChangeRate)));
+    int edited = 0;
+    while (edited < count) {
+      final int i = mRandom.nextInt(mSize);
+      if (mLastUpdates[i] != mClock) {
+        mVersions[i]++;
+        mLastUpdates[i] = mClock;
+        edited++;
+      }
+    }
+    return edited;
+  }
+
+  /**
+   * @return true if the contact with this id is served with an avatar
+   */
+  public boolean hasAvatar(long id)
+  {
+    // Spread over the directory rather than the first ids
+    return ((id * 0x9E3779B97F4A7C15L) >>> 40) % 1000 < mAvatarRatio * 1000;
+  }
+
+  /**
+   * @return the number of requests answered so far
+   */
+  public int getRequestCount()
+  {
+    return mRequests.get();
+  }
+
+  /**
+   * @return the response body bytes sent so far
+   */
+  public long getBytesSent()
+  {
+    return mBytesSent.get();
+  }
+
+  /**
+   * @return how often a response was held back to stay within the bandwidth
+   */
+  public int getThrottlePauses()
+  {
+    return mThrottlePauses.get();
+  }
+
+  private void authenticate(HttpExchange exchange) throws IOException
+  {
+    mRequests.incrementAndGet();
+    final Map<String, String> params = parseQuery(exchange);
+    delay();
+    if (!USERNAME.equals(params.get(NetworkUtilities.PARAM_USERNAME))
+        || !PASSWORD.equals(params.get(NetworkUtilities.PARAM_PASSWORD))) {
+      sendEmpty(exchange, 401);
+      return;
+    }
+    final byte[] body = ("{\"id\":\"" + USER_ID + "\",\"authenticationToken\":\"" + AUTH_TOKEN
+        + "\",\"deleted\":false}").getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    final OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+      mBytesSent.addAndGet(body.length);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void list(HttpExchange exchange) throws IOException
+  {
+    mRequests.incrementAndGet();
+    final Map<String, String> params = parseQuery(exchange);
+    delay();
+    if (!AUTH_TOKEN.equals(params.get(NetworkUtilities.PARAM_AUTH_TOKEN))
+        || !USER_ID.equals(params.get(NetworkUtilities.PARAM_USER_ID))) {
+      sendEmpty(exchange, 401);
+      return;
+    }
+    long modifiedSince = 0;
+    final String since = params.get(NetworkUtilities.PARAM_MODIFIED_SINCE);
+    if (since != null) {
+      try {
+        modifiedSince = Long.parseLong(since);
+      } catch (NumberFormatException e) {
+        sendEmpty(exchange, 400);
+        return;
+      }
+    }
+
+    // Select under the lock, stream without it
+    final long[] selected;
+    final int[] versions;
+    synchronized (this) {
+      final long[] keys = new long[mSize];
+      int count = 0;
+      for (int i = 0; i < mSize; i++) {
+        if (mLastUpdates[i] >= modifiedSince) {
+          // Sorting the packed keys orders by lastUpdate, then id
+          keys[count++] = (mLastUpdates[i] - EPOCH) << INDEX_BITS | i;
+        }
+      }
+      selected = Arrays.copyOf(keys, count);
+      versions = mVersions.clone();
+    }
+    Arrays.sort(selected);
+
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    final OutputStream out = new ThrottledOutputStream(exchange.getResponseBody());
+    try {
+      final StringBuilder sb = new StringBuilder(CHUNK_SIZE * 2);
+      sb.append('[');
+      for (int n = 0; n < selected.length; n++) {
+        final int i = (int) (selected[n] & (MAX_SIZE - 1));
+        if (n > 0) {
+          sb.append(',');
+        }
+        appendContact(sb, i + 1, versions[i], EPOCH + (selected[n] >>> INDEX_BITS));
+        if (sb.length() >= CHUNK_SIZE) {
+          out.write(sb.toString().getBytes("UTF-8"));
+          sb.setLength(0);
+        }
+      }
+      sb.append(']');
+      out.write(sb.toString().getBytes("UTF-8"));
+    } catch (IOException e) {
+      // The client went away
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void appendContact(StringBuilder sb, long id, int version, long lastUpdate)
+  {
+    sb.append("{\"id\":").append(id)
+        .append(",\"deleted\":false")
+        .append(",\"lastUpdate\":\"").append(lastUpdate).append('"')
+        .append(",\"contactStatus\":\"ACTIVE\",\"addressStatus\":\"UPTODATE\",\"form\":\"MISTER\"")
+        .append(",\"firstName\":\"First").append(id).append('"')
+        .append(",\"name\":\"Last").append(id).append('"')
+        .append(",\"email\":\"first").append(id).append(".v").append(version).append("@example.org\"")
+        .append(",\"privateEmail\":null")
+        .append(",\"mobilePhone\":\"+49 170 ").append(id).append('"')
+        .append(",\"businessPhone\":\"+49 561 ").append(100000 + id).append('"')
+        .append(",\"privatePhone\":null,\"privateMobilePhone\":null,\"fax\":null")
+        .append(",\"organization\":\"Organization ").append(id % 97).append('"')
+        .append(",\"division\":\"Division ").append(id % 7).append('"')
+        .append(",\"positionText\":\"Position ").append(version).append('"')
+        .append(",\"addressText\":\"Street ").append(id).append('"')
+        .append(",\"zipCode\":\"").append(10000 + id % 90000).append('"')
+        .append(",\"city\":\"Kassel\",\"state\":\"Hessen\",\"country\":\"Germany\"")
+        .append(",\"comment\":\"Revision ").append(version).append('"')
+        .append(",\"image\":");
+    if (hasAvatar(id)) {
+      sb.append(Base64Variants.MIME.encode(avatar(id), true));
+    } else {
+      sb.append("null");
+    }
+    sb.append('}');
+  }
+
+  /**
+   * @return the same bytes for the same contact, whatever its version
+   */
+  private byte[] avatar(long id)
+  {
+    final byte[] avatar = new byte[mAvatarBytes];
+    new Random(id).nextBytes(avatar);
+    return avatar;
+  }
+
+  private void delay()
+  {
+    if (mLatencyMillis > 0) {
+      try {
+        Thread.sleep(mLatencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void sendEmpty(HttpExchange exchange, int code) throws IOException
+  {
+    exchange.sendResponseHeaders(code, -1);
+    exchange.close();
+  }
+
+  private static Map<String, String> parseQuery(HttpExchange exchange) throws IOException
+  {
+    final HashMap<String, String> params = new HashMap<String, String>();
+    final String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      final int equals = pair.indexOf('=');
+      if (equals > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  /**
+   * Counts what is written and holds the writer back to the configured bandwidth.
+   */
+  private final class ThrottledOutputStream extends FilterOutputStream
+  {
+    private final long mStart = System.nanoTime();
+
+    private long mWritten;
+
+    ThrottledOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      while (len > 0) {
+        final int n = Math.min(len, CHUNK_SIZE);
+        out.write(b, off, n);
+        off += n;
+        len -= n;
+        mWritten += n;
+        mBytesSent.addAndGet(n);
+        throttle();
+      }
+    }
+
+    private void throttle() throws IOException
+    {
+      if (mBytesPerSecond <= 0) {
+        return;
+      }
+      final long dueNanos = mWritten * 1000000000L / mBytesPerSecond;
+      final long aheadMillis = (dueNanos - (System.nanoTime() - mStart)) / 1000000;
+      if (aheadMillis > 0) {
+        mThrottlePauses.incrementAndGet();
+        try {
+          Thread.sleep(aheadMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import static org.junit.Assert.*;
+
+import android.util.Pair;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.micromata.projectforge.android.sync.authenticator.AuthenticationException;
+
+/**
+ * The client's REST calls against {@link FakeProjectForgeServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class NetworkUtilitiesTest
+{
+  private static List<RawContact> fetch(FakeProjectForgeServer server, SyncWatermark watermark) throws Exception
+  {
+    final ContactStream stream = NetworkUtilities.openContactStream(null, server.getBaseUrl(),
+        FakeProjectForgeServer.USER_ID, FakeProjectForgeServer.AUTH_TOKEN, watermark);
+    final ArrayList<RawContact> contacts = new ArrayList<RawContact>();
+    final ArrayList<RawContact> chunk = new ArrayList<RawContact>();
+    while (stream.drainTo(chunk, 100) > 0) {
+      contacts.addAll(chunk);
+      chunk.clear();
+    }
+    stream.checkFailure();
+    return contacts;
+  }
+
+  @org.junit.Test
+  public void authenticate() throws Exception
+  {
+    final FakeProjectForgeServer server = new FakeProjectForgeServer(1).start();
+    try {
+      final Pair<String, String> auth = NetworkUtilities.authenticate(server.getBaseUrl(),
+          FakeProjectForgeServer.USERNAME, FakeProjectForgeServer.PASSWORD);
+      assertNotNull(auth);
+      assertEquals(FakeProjectForgeServer.USER_ID, auth.first);
+      assertEquals(FakeProjectForgeServer.AUTH_TOKEN, auth.second);
+
+      assertNull(NetworkUtilities.authenticate(server.getBaseUrl(), FakeProjectForgeServer.USERNAME, "wrong"));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @org.junit.Test
+  public void fullThenIncrementalSync() throws Exception
+  {
+    final FakeProjectForgeServer server = new FakeProjectForgeServer(500).setAvatarRatio(0.5).setAvatarBytes(512)
+        .setChangeRate(0.1).start();
+    try {
+      final SyncWatermark initial = SyncWatermark.decode(null, null);
+      final List<RawContact> all = fetch(server, initial);
+      assertEquals(500, all.size());
+      long previous = 0;
+      for (RawContact contact : all) {
+        assertTrue(contact.getSyncState() >= previous);
+        previous = contact.getSyncState();
+        assertEquals(server.hasAvatar(contact.getServerContactId()), contact.getAvatar() != null);
+        if (contact.getAvatar() != null) {
+          assertEquals(512, contact.getAvatar().length);
+        }
+        initial.advance(contact);
+      }
+
+      final int edited = server.advance();
+      assertEquals(50, edited);
+      final SyncWatermark watermark = SyncWatermark.decode(initial.encodeTimestamp(), initial.encodeSeenIds());
+      int changed = 0;
+      for (RawContact contact : fetch(server, watermark)) {
+        if (!watermark.isApplied(contact)) {
+          changed++;
+        }
+      }
+      assertEquals(edited, changed);
+      assertEquals(2, server.getRequestCount());
+    } finally {
+      server.stop();
+    }
+  }
+
+  @org.junit.Test(expected = AuthenticationException.class)
+  public void wrongTokenIsRejected() throws Exception
+  {
+    final FakeProjectForgeServer server = new FakeProjectForgeServer(10).start();
+    try {
+      NetworkUtilities.openContactStream(null, server.getBaseUrl(), FakeProjectForgeServer.USER_ID, "expired",
+          SyncWatermark.decode(null, null));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @org.junit.Test
+  public void bandwidthIsShaped() throws Exception
+  {
+    final FakeProjectForgeServer unshaped = new FakeProjectForgeServer(200).setAvatarRatio(1).setAvatarBytes(1024)
+        .start();
+    final FakeProjectForgeServer shaped = new FakeProjectForgeServer(200).setAvatarRatio(1).setAvatarBytes(1024)
+        .setBandwidth(512 * 1024).start();
+    try {
+      assertEquals(200, fetch(unshaped, SyncWatermark.decode(null, null)).size());
+      assertEquals(200, fetch(shaped, SyncWatermark.decode(null, null)).size());
+      // The same body, only held back
+      assertEquals(unshaped.getBytesSent(), shaped.getBytesSent());
+      assertEquals(0, unshaped.getThrottlePauses());
+      assertTrue(shaped.getThrottlePauses() > 0);
+    } finally {
+      unshaped.stop();
+      shaped.stop();
+    }
+  }
+}
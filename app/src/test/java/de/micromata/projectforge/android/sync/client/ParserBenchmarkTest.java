@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+
+/**
+ * Rough throughput numbers for the parser's field dispatch. Not a precise
+ * benchmark; run it on its own and compare the printed rates. Skipped unless
+ * enabled with <code>./gradlew test -Pbenchmarks</code>.
+ */
+public class ParserBenchmarkTest
+{
+  private static final int CONTACTS = 5000;
+
+  private static final int ROUNDS = 5;
+
+  private static final String[] NAMES;
+
+  static {
+    final Parser.Field[] fields = Parser.Field.values();
+    NAMES = new String[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      NAMES[i] = fields[i].jsonName;
+    }
+  }
+
+  @org.junit.Before
+  public void optIn()
+  {
+    Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+  }
+
+  private static byte[] dataset() throws Exception
+  {
+    final StringBuilder sb = new StringBuilder("[");
+    for (int i = 1; i <= CONTACTS; i++) {
+      if (i > 1) {
+        sb.append(',');
+      }
+      sb.append('{');
+      for (String name : NAMES) {
+        sb.append('"').append(name).append("\":");
+        if ("id".equals(name)) {
+          sb.append(i);
+        } else if ("deleted".equals(name)) {
+          sb.append("false");
+        } else if ("image".equals(name)) {
+          sb.append("null");
+        } else {
+          sb.append('"').append(name).append(i).append('"');
+        }
+        sb.append(',');
+      }
+      sb.append("\"unknownField\":{\"nested\":[1,2,3]}}");
+    }
+    return sb.append(']').toString().getBytes("UTF-8");
+  }
+
+  /**
+   * The dispatch the parser used before: one equals() per candidate, in
+   * declaration order.
+   */
+  private static int linearIndexOf(String name)
+  {
+    for (int i = 0; i < NAMES.length; i++) {
+      if (name.equals(NAMES[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @org.junit.Test
+  public void dispatch()
+  {
+    final int lookups = 2000000;
+    int sink = 0;
+    long linear = Long.MAX_VALUE;
+    long table = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < lookups; i++) {
+        sink += linearIndexOf(NAMES[i % NAMES.length]);
+      }
+      linear = Math.min(linear, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for (int i = 0; i < lookups; i++) {
+        sink += Parser.field(NAMES[i % NAMES.length]).ordinal();
+      }
+      table = Math.min(table, System.nanoTime() - start);
+    }
+    System.err.println(String.format(Locale.ROOT,
+        "dispatch: linear %.1f ns, table %.1f ns per field (%d)",
+        (double) linear / lookups, (double) table / lookups, sink));
+  }
+
+  @org.junit.Test
+  public void parse() throws Exception
+  {
+    final byte[] json = dataset();
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      final Parser parser = new Parser();
+      final long start = System.nanoTime();
+      parser.open(new ByteArrayInputStream(json));
+      int count = 0;
+      while (parser.nextContact() != null) {
+        count++;
+      }
+      parser.close();
+      best = Math.min(best, System.nanoTime() - start);
+      assertEquals(CONTACTS, count);
+    }
+    System.err.println(String.format(Locale.ROOT,
+        "parse: %d contacts, %.1f MB in %.1f ms, %.0f contacts/s",
+        CONTACTS, json.length / 1e6, best / 1e6, CONTACTS * 1e9 / best));
+  }
+}
@@ -3,8 +3,10 @@ package de.micromata.projectforge.android.sync.client;
 import static org.junit.Assert.*;
 
 import android.widget.ArrayAdapter;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -23,4 +25,80 @@ public class ParserTest
     System.err.println("size: " + serverDirtyList.size());
   }
 
+  private static InputStream threeContacts() throws Exception
+  {
+    final String json = "[{\"id\":1,\"name\":\"A\",\"lastUpdate\":\"10\"},"
+        + "{\"id\":2,\"name\":\"B\",\"lastUpdate\":\"20\"},"
+        + "{\"id\":3,\"name\":\"C\",\"lastUpdate\":\"30\"}]";
+    return new ByteArrayInputStream(json.getBytes("UTF-8"));
+  }
+
+  @org.junit.Test
+  public void iterator() throws Exception
+  {
+    final Parser parser = new Parser();
+    parser.open(threeContacts());
+    final Iterator<RawContact> it = parser.iterator();
+    long expected = 1;
+    while (it.hasNext()) {
+      assertEquals(expected++, it.next().getServerContactId());
+    }
+    parser.close();
+    assertEquals(4, expected);
+  }
+
+  @org.junit.Test(expected = ParseException.class)
+  public void openRejectsNonArray() throws Exception
+  {
+    new Parser().open(new ByteArrayInputStream("{\"id\":1}".getBytes("UTF-8")));
+  }
+
+  @org.junit.Test
+  public void parseFailureKeepsCause() throws Exception
+  {
+    try {
+      new Parser().parse(new ArrayList<RawContact>(), new ByteArrayInputStream("[{\"id\":".getBytes("UTF-8")), null);
+      fail();
+    } catch (ParseException e) {
+      assertNotNull(e.getCause());
+    }
+  }
+
+  @org.junit.Test
+  public void handlerStopsEarly() throws Exception
+  {
+    final List<RawContact> seen = new ArrayList<RawContact>();
+    new Parser().parse(new Parser.ContactHandler()
+    {
+      @Override
+      public boolean onContact(RawContact contact)
+      {
+        seen.add(contact);
+        return seen.size() < 2;
+      }
+    }, threeContacts(), null);
+    assertEquals(2, seen.size());
+    assertEquals(2, seen.get(1).getServerContactId());
+  }
+
+  @org.junit.Test
+  public void image() throws Exception
+  {
+    final String json = "[{\"id\":1,\"image\":\"AQID\\nBA==\"},"
+        + "{\"id\":2,\"image\":\"not base64!\",\"name\":\"B\"},"
+        + "{\"id\":3,\"image\":null},"
+        + "{\"id\":4,\"image\":\"AQIDBA\",\"name\":\"D\"},"
+        + "{\"id\":5,\"image\":\"AQIDBAU\"}]";
+    final ArrayList<RawContact> contacts = new ArrayList<RawContact>();
+    new Parser().parse(contacts, new ByteArrayInputStream(json.getBytes("UTF-8")), null);
+    assertEquals(5, contacts.size());
+    assertArrayEquals(new byte[] { 1, 2, 3, 4 }, contacts.get(0).getAvatar());
+    assertNull(contacts.get(1).getAvatar());
+    assertEquals("B", contacts.get(1).getLastName());
+    assertNull(contacts.get(2).getAvatar());
+    // Missing padding is accepted, as android.util.Base64 did
+    assertArrayEquals(new byte[] { 1, 2, 3, 4 }, contacts.get(3).getAvatar());
+    assertEquals("D", contacts.get(3).getLastName());
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, contacts.get(4).getAvatar());
+  }
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.client;
+
+import static org.junit.Assert.*;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+/**
+ * Which changes of an incremental sync {@link SyncWatermark} drops as already applied.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SyncWatermarkTest
+{
+  private static ArrayList<RawContact> parse(String json) throws Exception
+  {
+    final ArrayList<RawContact> contacts = new ArrayList<RawContact>();
+    new Parser().parse(contacts, new ByteArrayInputStream(json.getBytes("UTF-8")), null);
+    return contacts;
+  }
+
+  @org.junit.Test
+  public void onlyTheSeenOverlapIsApplied() throws Exception
+  {
+    final ArrayList<RawContact> contacts = parse("[{\"id\":1,\"lastUpdate\":\"20\"},"
+        + "{\"id\":2,\"lastUpdate\":\"20\"},"
+        + "{\"id\":3,\"lastUpdate\":\"30\"}]");
+    final SyncWatermark watermark = SyncWatermark.decode("20", "1");
+    assertTrue(watermark.isApplied(contacts.get(0)));
+    assertFalse(watermark.isApplied(contacts.get(1)));
+    assertFalse(watermark.isApplied(contacts.get(2)));
+  }
+
+  @org.junit.Test
+  public void undatedChangeIsNotApplied() throws Exception
+  {
+    final ArrayList<RawContact> contacts = parse("[{\"id\":1,\"lastUpdate\":\"yesterday\"},"
+        + "{\"id\":2}]");
+    final SyncWatermark watermark = SyncWatermark.decode("20", "1,2");
+    assertFalse(watermark.isInitial());
+    for (RawContact contact : contacts) {
+      assertEquals(0, contact.getSyncState());
+      assertFalse(watermark.isApplied(contact));
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import static org.junit.Assert.*;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.micromata.projectforge.android.sync.client.RawContact;
+
+/**
+ * The apply path against {@link InMemoryContactStore}: slicing, back references and quarantine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BatchOperationTest
+{
+  private static final String ACCOUNT = "user";
+
+  private static RawContact contact(long serverId)
+  {
+    final RawContact rawContact = new RawContact();
+    rawContact.setServerContactId(serverId);
+    return rawContact;
+  }
+
+  /**
+   * Queues a new contact with a name and the given number of phone rows.
+   */
+  private static void addContact(BatchOperation batch, long serverId, int phones)
+  {
+    batch.beginContact(contact(serverId));
+    final ContactOperations operations = ContactOperations.createNewContact(null, serverId, ACCOUNT, serverId, null,
+        true, batch);
+    operations.addName("First" + serverId, "Last" + serverId);
+    for (int i = 0; i < phones; i++) {
+      operations.addPhone("+49 " + serverId + " " + i, Phone.TYPE_OTHER);
+    }
+    batch.endContact();
+  }
+
+  private static void assertStored(InMemoryContactStore store, long serverId, int dataRows)
+  {
+    final ContentValues rawContact = store.findRawContact(serverId);
+    assertNotNull("raw contact " + serverId, rawContact);
+    final List<ContentValues> rows = store.getData(rawContact.getAsLong(RawContacts._ID));
+    assertEquals(dataRows, rows.size());
+    for (ContentValues row : rows) {
+      if (Phone.CONTENT_ITEM_TYPE.equals(row.getAsString(Data.MIMETYPE))) {
+        assertTrue(row.getAsString(Phone.NUMBER).startsWith("+49 " + serverId + " "));
+      }
+    }
+  }
+
+  @org.junit.Test
+  public void backReferencesAcrossSlices()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    final BatchOperation batch = new BatchOperation(null, store, true, false);
+    for (long serverId = 1; serverId <= 3; serverId++) {
+      addContact(batch, serverId, 199);
+    }
+    final ContentProviderResult[] results = batch.apply();
+
+    // 3 x 201 operations do not fit in one slice
+    assertEquals(2, store.applyCalls());
+    assertEquals(603, results.length);
+    assertTrue(batch.getQuarantined().isEmpty());
+    for (long serverId = 1; serverId <= 3; serverId++) {
+      assertStored(store, serverId, 200);
+    }
+    assertEquals(0, store.rollbacks());
+  }
+
+  @org.junit.Test
+  public void bulkBatchStaysBelowYieldLimit()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    final BatchOperation batch = new BatchOperation(null, store, true, true);
+    long serverId = 0;
+    while (!batch.isFull()) {
+      addContact(batch, ++serverId, 8);
+    }
+    batch.apply();
+
+    assertEquals(BatchOperation.MAX_OPERATIONS, store.operationCount());
+    assertEquals(3, store.applyCalls());
+    assertEquals(0, store.yieldPoints());
+    assertEquals(0, store.rollbacks());
+    assertEquals(serverId, store.rawContactCount());
+    assertEquals(RawContacts.AGGREGATION_MODE_SUSPENDED,
+        store.findRawContact(1).getAsInteger(RawContacts.AGGREGATION_MODE).intValue());
+  }
+
+  @org.junit.Test
+  public void failingContactIsQuarantined()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    store.failOn(5);
+    final BatchOperation batch = new BatchOperation(null, store, false, false);
+    for (long serverId = 1; serverId <= 10; serverId++) {
+      addContact(batch, serverId, 2);
+    }
+    final ContentProviderResult[] results = batch.apply();
+
+    assertEquals(1, batch.getQuarantined().size());
+    assertEquals(5, batch.getQuarantined().get(0).getServerContactId());
+    assertNull(store.findRawContact(5));
+    assertNull(results[4 * 4]);
+    for (long serverId = 1; serverId <= 10; serverId++) {
+      if (serverId != 5) {
+        assertStored(store, serverId, 3);
+      }
+    }
+  }
+
+  @org.junit.Test
+  public void emptyTrailingGroupIsDropped()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    final BatchOperation batch = new BatchOperation(null, store, false, false);
+    for (long serverId = 1; serverId <= 3; serverId++) {
+      addContact(batch, serverId, 1);
+    }
+    // A photo-only change opens a group without adding operations
+    batch.beginContact(contact(4));
+    batch.endContact();
+    assertEquals(3, batch.contactCount());
+    batch.apply();
+
+    assertTrue(batch.getQuarantined().isEmpty());
+    assertEquals(3, store.rawContactCount());
+  }
+
+  @org.junit.Test
+  public void emptyMiddleGroupIsNotQuarantined()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    store.failOn(3);
+    final BatchOperation batch = new BatchOperation(null, store, false, false);
+    addContact(batch, 1, 1);
+    batch.beginContact(contact(2));
+    batch.endContact();
+    addContact(batch, 3, 1);
+    addContact(batch, 4, 1);
+    assertEquals(3, batch.contactCount());
+    batch.apply();
+
+    assertEquals(1, batch.getQuarantined().size());
+    assertEquals(3, batch.getQuarantined().get(0).getServerContactId());
+    assertStored(store, 1, 2);
+    assertStored(store, 4, 2);
+  }
+
+  @org.junit.Test
+  public void storeRefusesLongTransactions() throws Exception
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    for (int i = 0; i < InMemoryContactStore.MAX_OPERATIONS_PER_YIELD_POINT; i++) {
+      operations.add(ContactOperations.newInsertCpo(RawContacts.CONTENT_URI, true, false)
+          .withValue(RawContacts.SOURCE_ID, i + 1).build());
+    }
+    try {
+      store.applyBatch(operations);
+      fail();
+    } catch (OperationApplicationException e) {
+      // expected
+    }
+    assertEquals(0, store.rawContactCount());
+  }
+
+  @org.junit.Test
+  public void indexAndSnapshotReadTheStore()
+  {
+    final InMemoryContactStore store = new InMemoryContactStore();
+    final BatchOperation batch = new BatchOperation(null, store, false, false);
+    for (long serverId = 1; serverId <= 4; serverId++) {
+      addContact(batch, serverId, 1);
+    }
+    batch.apply();
+
+    final RawContactIndex index = RawContactIndex.load(store, ACCOUNT);
+    assertEquals(4, index.size());
+    final long rawContactId = index.lookup(3);
+    assertEquals(rawContactId, store.findRawContact(3).getAsLong(RawContacts._ID).longValue());
+    assertEquals(0, RawContactIndex.load(store, "other").size());
+
+    final DataSnapshot snapshot = DataSnapshot.load(store, new long[] { rawContactId }, 1);
+    assertEquals(2, snapshot.rows(rawContactId).size());
+  }
+}
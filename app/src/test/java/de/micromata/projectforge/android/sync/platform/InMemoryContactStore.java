@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.platform;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.micromata.projectforge.android.sync.Constants;
+import de.micromata.projectforge.android.sync.util.LongSet;
+
+/**
+ * A {@link ContactStore} that keeps RawContacts and Data rows in memory, so the apply path can be
+ * tested and measured without a device.
+ * <p>
+ * It models what the sync relies on from the ContactsProvider:
+ * <ul>
+ * <li>operations are applied through {@link ContentProviderOperation#apply}, so back references
+ * resolve exactly as on the device;</li>
+ * <li>an applyBatch call is one transaction, except that an operation allowing a yield commits
+ * everything before it; a failure rolls back to the last yield point and is rethrown;</li>
+ * <li>more than {@link #MAX_OPERATIONS_PER_YIELD_POINT} operations between yield points are
+ * refused;</li>
+ * <li>deleting a raw contact only flags it, unless the caller is the sync adapter.</li>
+ * </ul>
+ * Display photos are kept apart from the rows and outside of any transaction, like the files the
+ * provider keeps them in.
+ * Selections are limited to <code>column=value</code> terms joined by AND, which covers the
+ * updates the sync builds.
+ */
+public class InMemoryContactStore implements ContactStore
+{
+  /**
+   * As in the ContactsProvider: the operation that reaches this count fails
+   */
+  static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+  private final TreeMap<Long, ContentValues> mRawContacts = new TreeMap<Long, ContentValues>();
+
+  private final TreeMap<Long, ContentValues> mData = new TreeMap<Long, ContentValues>();
+
+  private final TreeMap<Long, byte[]> mDisplayPhotos = new TreeMap<Long, byte[]>();
+
+  /**
+   * Previous state of every row touched since the last commit, for the rollback
+   */
+  private final ArrayList<Undo> mJournal = new ArrayList<Undo>();
+
+  private final Provider mProvider = new Provider();
+
+  private final LongSet mFailingServerIds = new LongSet();
+
+  private long mNextRawContactId = 1;
+
+  private long mNextDataId = 1;
+
+  private int mApplyCalls;
+
+  private int mOperations;
+
+  private int mYieldPoints;
+
+  private int mRollbacks;
+
+  /**
+   * Makes every operation that writes the raw contact with this SOURCE_ID, or one of its Data
+   * rows, fail the way the provider fails on bad values.
+   */
+  public void failOn(long serverId)
+  {
+    mFailingServerIds.add(serverId);
+  }
+
+  @Override
+  public Cursor queryRawContacts(String accountName, String[] projection)
+  {
+    final MatrixCursor cursor = new MatrixCursor(projection);
+    for (ContentValues rawContact : mRawContacts.values()) {
+      if (isOfAccount(rawContact, accountName)) {
+        addRow(cursor, projection, rawContact, rawContact);
+      }
+    }
+    return cursor;
+  }
+
+  @Override
+  public Cursor queryData(String accountName, String mimeType, String[] projection)
+  {
+    final MatrixCursor cursor = new MatrixCursor(projection);
+    for (ContentValues row : mData.values()) {
+      final ContentValues rawContact = mRawContacts.get(row.getAsLong(Data.RAW_CONTACT_ID));
+      if (mimeType.equals(row.getAsString(Data.MIMETYPE)) && isOfAccount(rawContact, accountName)) {
+        addRow(cursor, projection, row, rawContact);
+      }
+    }
+    return cursor;
+  }
+
+  @Override
+  public Cursor queryData(long[] rawContactIds, int count, String[] projection)
+  {
+    final LongSet wanted = new LongSet(count);
+    for (int i = 0; i < count; i++) {
+      wanted.add(rawContactIds[i]);
+    }
+    final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+    for (ContentValues row : mData.values()) {
+      if (wanted.contains(row.getAsLong(Data.RAW_CONTACT_ID))) {
+        rows.add(row);
+      }
+    }
+    // Already in _ID order, the sort is stable
+    Collections.sort(rows, new Comparator<ContentValues>()
+    {
+      @Override
+      public int compare(ContentValues a, ContentValues b)
+      {
+        return a.getAsLong(Data.RAW_CONTACT_ID).compareTo(b.getAsLong(Data.RAW_CONTACT_ID));
+      }
+    });
+    final MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+    for (ContentValues row : rows) {
+      addRow(cursor, projection, row, mRawContacts.get(row.getAsLong(Data.RAW_CONTACT_ID)));
+    }
+    return cursor;
+  }
+
+  @Override
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+      throws OperationApplicationException
+  {
+    mApplyCalls++;
+    mJournal.clear();
+    final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+    int sinceYieldPoint = 0;
+    try {
+      for (int i = 0; i < operations.size(); i++) {
+        if (++sinceYieldPoint >= MAX_OPERATIONS_PER_YIELD_POINT) {
+          throw new OperationApplicationException("Too many content provider operations between yield points. "
+              + "The maximum number of operations per yield point is " + MAX_OPERATIONS_PER_YIELD_POINT, i);
+        }
+        final ContentProviderOperation operation = operations.get(i);
+        if (i > 0 && operation.isYieldAllowed()) {
+          // The provider commits the transaction so far and starts a new one
+          sinceYieldPoint = 0;
+          mYieldPoints++;
+          mJournal.clear();
+        }
+        results[i] = operation.apply(mProvider, results, i);
+        mOperations++;
+      }
+    } catch (OperationApplicationException e) {
+      rollback();
+      throw e;
+    } catch (RuntimeException e) {
+      rollback();
+      throw e;
+    }
+    mJournal.clear();
+    return results;
+  }
+
+  @Override
+  public boolean writeDisplayPhoto(long rawContactId, byte[] photo)
+  {
+    if (!mRawContacts.containsKey(rawContactId)) {
+      return false;
+    }
+    mDisplayPhotos.put(rawContactId, photo.clone());
+    return true;
+  }
+
+  /**
+   * @return the raw contact, deleted or not, or null
+   */
+  public ContentValues getRawContact(long rawContactId)
+  {
+    return mRawContacts.get(rawContactId);
+  }
+
+  /**
+   * @return the raw contact synced from serverId, or null
+   */
+  public ContentValues findRawContact(long serverId)
+  {
+    final String sourceId = String.valueOf(serverId);
+    for (ContentValues rawContact : mRawContacts.values()) {
+      if (sourceId.equals(rawContact.getAsString(RawContacts.SOURCE_ID))) {
+        return rawContact;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the Data rows of the raw contact in _ID order
+   */
+  public List<ContentValues> getData(long rawContactId)
+  {
+    final ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+    for (ContentValues row : mData.values()) {
+      if (row.getAsLong(Data.RAW_CONTACT_ID) == rawContactId) {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  public byte[] getDisplayPhoto(long rawContactId)
+  {
+    return mDisplayPhotos.get(rawContactId);
+  }
+
+  public int rawContactCount()
+  {
+    return mRawContacts.size();
+  }
+
+  public int dataCount()
+  {
+    return mData.size();
+  }
+
+  /**
+   * @return the number of applyBatch calls, failed ones included
+   */
+  public int applyCalls()
+  {
+    return mApplyCalls;
+  }
+
+  /**
+   * @return the number of operations applied, rolled back ones included
+   */
+  public int operationCount()
+  {
+    return mOperations;
+  }
+
+  public int yieldPoints()
+  {
+    return mYieldPoints;
+  }
+
+  public int rollbacks()
+  {
+    return mRollbacks;
+  }
+
+  private static boolean isOfAccount(ContentValues rawContact, String accountName)
+  {
+    return rawContact != null && Constants.ACCOUNT_TYPE.equals(rawContact.getAsString(RawContacts.ACCOUNT_TYPE))
+        && accountName.equals(rawContact.getAsString(RawContacts.ACCOUNT_NAME));
+  }
+
+  /**
+   * Adds a row, taking the columns the row doesn't have from its raw contact, as the Data view
+   * does.
+   */
+  private static void addRow(MatrixCursor cursor, String[] projection, ContentValues row, ContentValues rawContact)
+  {
+    final Object[] values = new Object[projection.length];
+    for (int i = 0; i < projection.length; i++) {
+      values[i] = row.containsKey(projection[i]) || rawContact == null ? row.get(projection[i])
+          : rawContact.get(projection[i]);
+    }
+    cursor.addRow(values);
+  }
+
+  private void rollback()
+  {
+    for (int i = mJournal.size() - 1; i >= 0; i--) {
+      final Undo undo = mJournal.get(i);
+      if (undo.previous == null) {
+        undo.table.remove(undo.id);
+      } else {
+        undo.table.put(undo.id, undo.previous);
+      }
+    }
+    mJournal.clear();
+    mRollbacks++;
+  }
+
+  /**
+   * Records the state of a row before it is changed.
+   */
+  private void journal(TreeMap<Long, ContentValues> table, long id)
+  {
+    final ContentValues previous = table.get(id);
+    mJournal.add(new Undo(table, id, previous != null ? new ContentValues(previous) : null));
+  }
+
+  private void checkWritable(ContentValues rawContact)
+  {
+    final Long serverId = rawContact != null ? rawContact.getAsLong(RawContacts.SOURCE_ID) : null;
+    if (serverId != null && mFailingServerIds.contains(serverId)) {
+      throw new IllegalArgumentException("Refusing to write raw contact " + serverId);
+    }
+  }
+
+  private TreeMap<Long, ContentValues> table(Uri uri)
+  {
+    final String table = uri.getPathSegments().get(0);
+    if ("raw_contacts".equals(table)) {
+      return mRawContacts;
+    } else if ("data".equals(table)) {
+      return mData;
+    }
+    throw new UnsupportedOperationException("Unsupported uri " + uri);
+  }
+
+  /**
+   * @return the ids of the rows the uri and the selection point to
+   */
+  private long[] select(Uri uri, String selection, String[] selectionArgs)
+  {
+    final TreeMap<Long, ContentValues> table = table(uri);
+    final ArrayList<Long> ids = new ArrayList<Long>();
+    if (uri.getPathSegments().size() > 1) {
+      final long id = ContentUris.parseId(uri);
+      if (table.containsKey(id)) {
+        ids.add(id);
+      }
+    } else {
+      ids.addAll(table.keySet());
+    }
+    final Map<String, String> terms = parseSelection(selection, selectionArgs);
+    final long[] selected = new long[ids.size()];
+    int count = 0;
+    for (Long id : ids) {
+      if (matches(table.get(id), terms)) {
+        selected[count++] = id;
+      }
+    }
+    final long[] result = new long[count];
+    System.arraycopy(selected, 0, result, 0, count);
+    return result;
+  }
+
+  private static Map<String, String> parseSelection(String selection, String[] selectionArgs)
+  {
+    final TreeMap<String, String> terms = new TreeMap<String, String>();
+    if (selection == null) {
+      return terms;
+    }
+    int arg = 0;
+    for (String term : selection.split(" AND ")) {
+      final int equals = term.indexOf('=');
+      if (equals <= 0) {
+        throw new UnsupportedOperationException("Unsupported selection " + selection);
+      }
+      String value = term.substring(equals + 1).trim();
+      if ("?".equals(value)) {
+        value = selectionArgs[arg++];
+      } else if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+        value = value.substring(1, value.length() - 1);
+      }
+      terms.put(term.substring(0, equals).trim(), value);
+    }
+    return terms;
+  }
+
+  private static boolean matches(ContentValues row, Map<String, String> terms)
+  {
+    for (Map.Entry<String, String> term : terms.entrySet()) {
+      if (!term.getValue().equals(row.getAsString(term.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isSyncAdapter(Uri uri)
+  {
+    return Boolean.parseBoolean(uri.getQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER));
+  }
+
+  private static final class Undo
+  {
+    final TreeMap<Long, ContentValues> table;
+
+    final long id;
+
+    final ContentValues previous;
+
+    Undo(TreeMap<Long, ContentValues> table, long id, ContentValues previous)
+    {
+      this.table = table;
+      this.id = id;
+      this.previous = previous;
+    }
+  }
+
+  /**
+   * Receives the operations of a batch
+   */
+  private final class Provider extends ContentProvider
+  {
+    @Override
+    public boolean onCreate()
+    {
+      return true;
+    }
+
+    @Override
+    public String getType(Uri uri)
+    {
+      return null;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
+    {
+      throw new UnsupportedOperationException("Queries go through the ContactStore methods");
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values)
+    {
+      final TreeMap<Long, ContentValues> table = table(uri);
+      final ContentValues row = new ContentValues(values);
+      final long id;
+      if (table == mRawContacts) {
+        checkWritable(row);
+        id = mNextRawContactId++;
+        if (!row.containsKey(RawContacts.DELETED)) {
+          row.put(RawContacts.DELETED, 0);
+        }
+        if (!row.containsKey(RawContacts.AGGREGATION_MODE)) {
+          row.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT);
+        }
+      } else {
+        final Long rawContactId = row.getAsLong(Data.RAW_CONTACT_ID);
+        final ContentValues rawContact = rawContactId != null ? mRawContacts.get(rawContactId) : null;
+        if (rawContact == null) {
+          throw new IllegalArgumentException("No raw contact " + rawContactId + " for " + row);
+        }
+        checkWritable(rawContact);
+        id = mNextDataId++;
+      }
+      // RawContacts and Data share the _ID column
+      row.put(RawContacts._ID, id);
+      journal(table, id);
+      table.put(id, row);
+      return ContentUris.withAppendedId(uri.buildUpon().clearQuery().build(), id);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
+    {
+      final TreeMap<Long, ContentValues> table = table(uri);
+      final long[] ids = select(uri, selection, selectionArgs);
+      for (long id : ids) {
+        final ContentValues row = table.get(id);
+        checkWritable(table == mRawContacts ? row : mRawContacts.get(row.getAsLong(Data.RAW_CONTACT_ID)));
+        journal(table, id);
+        final ContentValues updated = new ContentValues(row);
+        updated.putAll(values);
+        table.put(id, updated);
+      }
+      return ids.length;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs)
+    {
+      final TreeMap<Long, ContentValues> table = table(uri);
+      final long[] ids = select(uri, selection, selectionArgs);
+      for (long id : ids) {
+        if (table == mRawContacts && !isSyncAdapter(uri)) {
+          // Left for the sync adapter to purge
+          journal(table, id);
+          final ContentValues deleted = new ContentValues(table.get(id));
+          deleted.put(RawContacts.DELETED, 1);
+          table.put(id, deleted);
+          continue;
+        }
+        if (table == mRawContacts) {
+          for (ContentValues row : getData(id)) {
+            final long dataId = row.getAsLong(Data._ID);
+            journal(mData, dataId);
+            mData.remove(dataId);
+          }
+        }
+        journal(table, id);
+        table.remove(id);
+      }
+      return ids.length;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Bytes allocated to fill the sync bookkeeping maps with 50k serverIds, boxed collections against
+ * the primitive ones. Needs a JVM that reports per-thread allocation; elsewhere it only prints the
+ * timings. Skipped unless enabled with <code>./gradlew test -Pbenchmarks</code>.
+ */
+public class LongMapsBenchmarkTest
+{
+  private static final int ENTRIES = 50000;
+
+  private static final int ROUNDS = 5;
+
+  @org.junit.Before
+  public void optIn()
+  {
+    Assume.assumeTrue(Boolean.getBoolean("benchmarks"));
+  }
+
+  private interface Fill
+  {
+    int run();
+  }
+
+  private static long allocatedBytes()
+  {
+    try {
+      return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    } catch (ClassCastException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Runs a fill a few times and reports the smallest allocation and time seen.
+   */
+  private static long[] measure(Fill fill)
+  {
+    long bytes = Long.MAX_VALUE;
+    long nanos = Long.MAX_VALUE;
+    int sink = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      final long before = allocatedBytes();
+      final long start = System.nanoTime();
+      sink += fill.run();
+      nanos = Math.min(nanos, System.nanoTime() - start);
+      bytes = Math.min(bytes, allocatedBytes() - before);
+    }
+    assertEquals(ROUNDS * ENTRIES, sink);
+    return new long[] { bytes, nanos };
+  }
+
+  private static void report(String name, long[] boxed, long[] primitive)
+  {
+    System.err.println(String.format(Locale.ROOT,
+        "%s, %d entries: boxed %.1f KB in %.2f ms, primitive %.1f KB in %.2f ms",
+        name, ENTRIES, boxed[0] / 1024.0, boxed[1] / 1e6, primitive[0] / 1024.0, primitive[1] / 1e6));
+  }
+
+  /**
+   * Server ids are large and sparse, so most of them are not in the Long cache
+   */
+  private static long serverId(int i)
+  {
+    return 1000000L + 7L * i;
+  }
+
+  @org.junit.Test
+  public void longLong()
+  {
+    final long[] boxed = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final HashMap<Long, Long> map = new HashMap<Long, Long>(ENTRIES * 2);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), serverId(i) + 1);
+        }
+        return map.size();
+      }
+    });
+    final long[] primitive = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final LongLongMap map = new LongLongMap(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), serverId(i) + 1);
+        }
+        return map.size();
+      }
+    });
+    report("long->long", boxed, primitive);
+    if (boxed[0] >= 0) {
+      assertTrue(primitive[0] < boxed[0]);
+    }
+  }
+
+  @org.junit.Test
+  public void longInt()
+  {
+    final long[] boxed = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final HashMap<Long, Integer> map = new HashMap<Long, Integer>(ENTRIES * 2);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), i + 1000);
+        }
+        return map.size();
+      }
+    });
+    final long[] primitive = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final LongIntMap map = new LongIntMap(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), i + 1000);
+        }
+        return map.size();
+      }
+    });
+    report("long->int", boxed, primitive);
+    if (boxed[0] >= 0) {
+      assertTrue(primitive[0] < boxed[0]);
+    }
+  }
+
+  @org.junit.Test
+  public void longObject()
+  {
+    final Object value = new Object();
+    final long[] boxed = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final HashMap<Long, Object> map = new HashMap<Long, Object>(ENTRIES * 2);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), value);
+        }
+        return map.size();
+      }
+    });
+    final long[] primitive = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final LongObjectMap<Object> map = new LongObjectMap<Object>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+          map.put(serverId(i), value);
+        }
+        return map.size();
+      }
+    });
+    report("long->Object", boxed, primitive);
+    if (boxed[0] >= 0) {
+      assertTrue(primitive[0] < boxed[0]);
+    }
+  }
+
+  @org.junit.Test
+  public void longSet()
+  {
+    final long[] boxed = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final HashSet<Long> set = new HashSet<Long>(ENTRIES * 2);
+        for (int i = 0; i < ENTRIES; i++) {
+          set.add(serverId(i));
+        }
+        return set.size();
+      }
+    });
+    final long[] primitive = measure(new Fill()
+    {
+      @Override
+      public int run()
+      {
+        final LongSet set = new LongSet(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+          set.add(serverId(i));
+        }
+        return set.size();
+      }
+    });
+    report("long set", boxed, primitive);
+    if (boxed[0] >= 0) {
+      assertTrue(primitive[0] < boxed[0]);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package de.micromata.projectforge.android.sync.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the primitive maps against HashMap with random keys, including 0 and removals that
+ * exercise the backward shift.
+ */
+public class LongMapsTest
+{
+  private static final int OPERATIONS = 200000;
+
+  @org.junit.Test
+  public void longIntMap()
+  {
+    final LongIntMap map = new LongIntMap();
+    final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+    final Random random = new Random(1);
+    for (int i = 0; i < OPERATIONS; i++) {
+      final long key = random.nextInt(5000) - 100;
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key) != null, map.remove(key));
+      } else {
+        map.put(key, i);
+        expected.put(key, i);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+      assertTrue(map.containsKey(entry.getKey()));
+      assertEquals(entry.getValue().intValue(), map.get(entry.getKey(), -1));
+    }
+    assertEquals(expected.size(), map.keys().length);
+    for (long key : map.keys()) {
+      assertTrue(expected.containsKey(key));
+    }
+  }
+
+  @org.junit.Test
+  public void longObjectMap()
+  {
+    final LongObjectMap<String> map = new LongObjectMap<String>();
+    final Map<Long, String> expected = new HashMap<Long, String>();
+    final Random random = new Random(2);
+    for (int i = 0; i < OPERATIONS; i++) {
+      final long key = random.nextInt(5000) - 100;
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key) != null, map.remove(key));
+      } else {
+        final String value = "v" + i;
+        map.put(key, value);
+        expected.put(key, value);
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (Map.Entry<Long, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+    assertEquals(expected.size(), map.values().size());
+    assertNull(map.get(Long.MAX_VALUE));
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get(0));
+  }
+}